@@ -0,0 +1,71 @@
+package be.msec.labgrpc.benchmarks;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// shared pieces of the benchmarks
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    // the server logs every connect and message, which would be measured instead of the code
+    static void quietLogging() {
+        Logger.getLogger("").setLevel(Level.OFF);
+    }
+
+    // an outgoing stream without a transport: always ready, every value goes to the consumer
+    static <T> ServerCallStreamObserver<T> consumingObserver(Consumer<T> consumer) {
+        return new ServerCallStreamObserver<T>() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public void setOnCancelHandler(Runnable onCancelHandler) {
+            }
+
+            @Override
+            public void setCompression(String compression) {
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setOnReadyHandler(Runnable onReadyHandler) {
+            }
+
+            @Override
+            public void disableAutoInboundFlowControl() {
+            }
+
+            @Override
+            public void request(int count) {
+            }
+
+            @Override
+            public void setMessageCompression(boolean enable) {
+            }
+
+            @Override
+            public void onNext(T value) {
+                consumer.accept(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}
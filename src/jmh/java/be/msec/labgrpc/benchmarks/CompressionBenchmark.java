@@ -0,0 +1,73 @@
+package be.msec.labgrpc.benchmarks;
+
+import be.msec.labgrpc.HistoryPage;
+import be.msec.labgrpc.User;
+import be.msec.labgrpc.server.Message;
+import be.msec.labgrpc.server.MessageType;
+import com.google.protobuf.MessageLite;
+import io.grpc.Codec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// what gzip costs and saves on a history page of n messages and on one live message
+// the benchmarks measure the time of serializing with and without compression, the bytes counter shows the size
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    @Param({"1", "50", "200"})
+    int messages;
+
+    private final Codec gzip = new Codec.Gzip();
+    private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    private HistoryPage page;
+
+    // bytes written by one operation, reported next to its time
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() {
+        HistoryPage.Builder builder = HistoryPage.newBuilder();
+        for (int i = 0; i < messages; i++) {
+            Message message = new Message(new User("user" + i % 7), MessageType.BROADCAST,
+                    "hello everyone, this is chat message number " + i);
+            message.setSequence(i + 1);
+            builder.addMessages(message.toEnvelope());
+        }
+        page = builder.build();
+    }
+
+    private int compress(MessageLite message) throws IOException {
+        wire.reset();
+        try (OutputStream out = gzip.compress(wire)) {
+            message.writeTo(out);
+        }
+        return wire.size();
+    }
+
+    @Benchmark
+    public int serialize(Size size) throws IOException {
+        wire.reset();
+        page.writeTo(wire);
+        size.bytes = wire.size();
+        return wire.size();
+    }
+
+    @Benchmark
+    public int serializeGzip(Size size) throws IOException {
+        size.bytes = compress(page);
+        return wire.size();
+    }
+}
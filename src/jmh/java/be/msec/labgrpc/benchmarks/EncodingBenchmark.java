@@ -0,0 +1,129 @@
+package be.msec.labgrpc.benchmarks;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.ChatServiceGrpc;
+import be.msec.labgrpc.MessageText;
+import be.msec.labgrpc.PreEncoded;
+import be.msec.labgrpc.User;
+import be.msec.labgrpc.server.Message;
+import be.msec.labgrpc.server.MessageDispatcher;
+import be.msec.labgrpc.server.MessageType;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// turning a stored message into what goes on the wire
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    @Param({"16", "256"})
+    int length;
+
+    private Message message;
+    private long sequence;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        message = new Message(new User("sender"), MessageType.BROADCAST, text.toString());
+        message.setSequence(1);
+    }
+
+    // the legacy "PUBLIC: sender: text" line
+    @Benchmark
+    public String getContent() {
+        return message.getContent();
+    }
+
+    @Benchmark
+    public byte[] legacyMessageText() {
+        MessageText text = MessageDispatcher.toMessageText(message);
+        return text.toByteArray();
+    }
+
+    // a new message every time, so the envelope is built and serialized
+    @Benchmark
+    public byte[] envelopeFirstDelivery() {
+        Message fresh = new Message(message.getSender(), MessageType.BROADCAST, message.getText());
+        fresh.setSequence(++sequence);
+        return fresh.toEnvelope().toByteArray();
+    }
+
+    // the envelope is cached, what every further subscriber costs
+    @Benchmark
+    public ChatEnvelope envelopeCached() {
+        return message.toEnvelope();
+    }
+
+    @Benchmark
+    public byte[] envelopeSerialize() {
+        return message.toEnvelope().toByteArray();
+    }
+
+    /* ----------------------------- FAN-OUT ----------------------------- */
+    // one broadcast written to every subscriber through the response marshaller of resumeMessages
+    @State(Scope.Thread)
+    public static class FanOut {
+
+        @Param({"1", "100"})
+        int subscribers;
+
+        MethodDescriptor<?, Object> method;
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+        @Setup
+        @SuppressWarnings("unchecked")
+        public void setup() {
+            method = (MethodDescriptor<?, Object>) PreEncoded.responses(
+                    new ChatServiceGrpc.ChatServiceImplBase() {
+                    }.bindService(), "resumeMessages")
+                    .getMethod(ChatServiceGrpc.getResumeMessagesMethod().getFullMethodName())
+                    .getMethodDescriptor();
+        }
+
+        int write(Object response) throws IOException {
+            wire.reset();
+            return ((Drainable) method.streamResponse(response)).drainTo(wire);
+        }
+    }
+
+    private Message nextBroadcast() {
+        Message fresh = new Message(message.getSender(), MessageType.BROADCAST, message.getText());
+        fresh.setSequence(++sequence);
+        return fresh;
+    }
+
+    // the shared envelope is serialized again for every subscriber
+    @Benchmark
+    public int fanOutSerializeEach(FanOut fanOut) throws IOException {
+        Message fresh = nextBroadcast();
+        int bytes = 0;
+        for (int i = 0; i < fanOut.subscribers; i++) {
+            bytes += fanOut.write(fresh.toEnvelope());
+        }
+        return bytes;
+    }
+
+    // serialized once, every subscriber copies the same bytes
+    @Benchmark
+    public int fanOutPreEncoded(FanOut fanOut) throws IOException {
+        Message fresh = nextBroadcast();
+        int bytes = 0;
+        for (int i = 0; i < fanOut.subscribers; i++) {
+            bytes += fanOut.write(fresh.encodedEnvelope());
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,73 @@
+package be.msec.labgrpc.benchmarks;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.User;
+import be.msec.labgrpc.exceptions.DuplicateUsernameException;
+import be.msec.labgrpc.server.Message;
+import be.msec.labgrpc.server.MessageDispatcher;
+import be.msec.labgrpc.server.MessageType;
+import be.msec.labgrpc.server.OutboundStream;
+import be.msec.labgrpc.server.UserManager;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// storing a message and writing it to every subscriber, without a transport
+// an operation is one message, delivered to all subscribers before the call returns
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    @Param({"1", "10", "100"})
+    int subscribers;
+
+    private UserManager userManager;
+    private MessageDispatcher dispatcher;
+    private User sender;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws DuplicateUsernameException {
+        Benchmarks.quietLogging();
+        userManager = new UserManager();
+        dispatcher = new MessageDispatcher(userManager);
+        for (int i = 0; i < subscribers; i++) {
+            String name = "user" + i;
+            userManager.connectUser(name);
+            OutboundStream<ChatEnvelope> stream = new OutboundStream<>(Benchmarks.consumingObserver(blackhole::consume));
+            dispatcher.subscribe(name, stream, -1);
+        }
+        sender = new User("user0");
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        Message msg = new Message(sender, MessageType.BROADCAST, "hello everyone");
+        userManager.addToMessages(msg);
+        dispatcher.dispatch(msg);
+    }
+
+    // only the sender and the receiver are woken up
+    @Benchmark
+    public void privateMessage() {
+        Message msg = new Message(sender, MessageType.PRIVATE, "hello you", "user" + (subscribers - 1));
+        userManager.addToMessages(msg);
+        dispatcher.dispatch(msg);
+    }
+
+    // no subscriber is woken up, the cost of storing alone
+    @Benchmark
+    public void storeOnly() {
+        Message msg = new Message(sender, MessageType.BROADCAST, "hello everyone");
+        userManager.addToMessages(msg);
+    }
+}
@@ -0,0 +1,83 @@
+package be.msec.labgrpc.benchmarks;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.ChatServiceGrpc;
+import be.msec.labgrpc.MessageText;
+import be.msec.labgrpc.SyncRequest;
+import be.msec.labgrpc.UserInfo;
+import be.msec.labgrpc.server.ChatServer;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// a broadcast from the client stub to every subscribed client over the in-process transport
+// an operation is one sendBroadcastMsg call, finished when all subscribers received the message
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InProcessBroadcastBenchmark {
+
+    @Param({"1", "10", "50"})
+    int subscribers;
+
+    private ChatServer server;
+    private ManagedChannel channel;
+    private ChatServiceGrpc.ChatServiceBlockingStub sender;
+    private final AtomicLong received = new AtomicLong();
+    private long sent;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.quietLogging();
+        String name = "benchmark-" + System.nanoTime();
+        server = new ChatServer(InProcessServerBuilder.forName(name).directExecutor(), 0);
+        server.start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        sender = ChatServiceGrpc.newBlockingStub(channel);
+        ChatServiceGrpc.ChatServiceStub async = ChatServiceGrpc.newStub(channel);
+        for (int i = 0; i < subscribers; i++) {
+            String userName = "user" + i;
+            sender.connectUser(UserInfo.newBuilder().setName(userName).build());
+            async.resumeMessages(SyncRequest.newBuilder().setName(userName).setLastSequence(-1).build(),
+                    new StreamObserver<ChatEnvelope>() {
+                        @Override
+                        public void onNext(ChatEnvelope value) {
+                            received.incrementAndGet();
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                        }
+                    });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.shutdownNow();
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        sender.sendBroadcastMsg(MessageText.newBuilder().setSender("user0").setText("hello everyone").build());
+        long expected = ++sent * subscribers;
+        while (received.get() < expected) {
+            LockSupport.parkNanos(1000);
+        }
+    }
+}
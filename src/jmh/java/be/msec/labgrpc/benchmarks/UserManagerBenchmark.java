@@ -0,0 +1,65 @@
+package be.msec.labgrpc.benchmarks;
+
+import be.msec.labgrpc.exceptions.DuplicateUsernameException;
+import be.msec.labgrpc.exceptions.UserNotFoundException;
+import be.msec.labgrpc.server.UserManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// connect and disconnect throughput of UserManager, run with -t 4 to see contention between threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserManagerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Users {
+        // users that stay online during the benchmark
+        @Param({"0", "1000"})
+        int online;
+
+        UserManager userManager;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setup() throws DuplicateUsernameException {
+            Benchmarks.quietLogging();
+            userManager = new UserManager();
+            for (int i = 0; i < online; i++) {
+                userManager.connectUser("online" + i);
+            }
+        }
+    }
+
+    // every thread cycles through its own names, so connects never collide
+    @State(Scope.Thread)
+    public static class Names {
+        String[] names;
+        int next;
+
+        @Setup
+        public void setup(Users users) {
+            int thread = users.threads.getAndIncrement();
+            names = new String[256];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "user" + thread + "-" + i;
+            }
+        }
+    }
+
+    @Benchmark
+    public void connectDisconnect(Users users, Names names) throws DuplicateUsernameException, UserNotFoundException {
+        String name = names.names[names.next++ & (names.names.length - 1)];
+        users.userManager.connectUser(name);
+        users.userManager.disconnectUser(name);
+    }
+
+    @Benchmark
+    public boolean isOnline(Users users, Names names) {
+        return users.userManager.isOnline(names.names[names.next++ & (names.names.length - 1)]);
+    }
+}
@@ -0,0 +1,85 @@
+package be.msec.labgrpc;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+
+// which messages are gzipped on the wire, for the server and the client alike
+// gRPC compresses every message on its own, so small live messages go as they are (the gzip header
+// alone would outweigh what it saves) and only messages of at least minBytes are compressed,
+// in practice history pages and batches; a peer that does not accept gzip receives them uncompressed
+public class CompressionPolicy {
+
+    public static final String GZIP = "gzip";
+    public static final int DEFAULT_MIN_BYTES = 1024;
+    public static final CompressionPolicy NONE = new CompressionPolicy(null, 0);
+
+    // null when compression is off
+    private final String codec;
+    private final int minBytes;
+
+    /* ----------------------------- CONSTRUCTOR ----------------------------- */
+    public CompressionPolicy(String codec, int minBytes) {
+        this.codec = codec;
+        this.minBytes = minBytes;
+    }
+
+    // -Dchat.compression=gzip (or none) -Dchat.compression.minBytes=1024
+    public static CompressionPolicy fromSystemProperties() {
+        String codec = System.getProperty("chat.compression", GZIP);
+        if (codec.isEmpty() || codec.equals("none")) {
+            return NONE;
+        }
+        return new CompressionPolicy(codec, Integer.getInteger("chat.compression.minBytes", DEFAULT_MIN_BYTES));
+    }
+
+    /* ----------------------------- DECISIONS ----------------------------- */
+    public boolean isEnabled() {
+        return codec != null;
+    }
+
+    public boolean shouldCompress(int serializedSize) {
+        return codec != null && serializedSize >= minBytes;
+    }
+
+    // for a unary call or the first call of a stub, null when the request goes uncompressed
+    public String codecFor(MessageLite request) {
+        return shouldCompress(request.getSerializedSize()) ? codec : null;
+    }
+
+    // choose the codec of a server call, before its first message
+    public void enable(ServerCallStreamObserver<?> call) {
+        if (codec != null) {
+            call.setCompression(codec);
+            call.setMessageCompression(false);
+        }
+    }
+
+    // compress the next message of the call if it is large enough
+    public void beforeWrite(CallStreamObserver<?> call, Object message) {
+        if (codec != null) {
+            call.setMessageCompression(shouldCompress(sizeOf(message)));
+        }
+    }
+
+    private static int sizeOf(Object message) {
+        if (message instanceof PreEncoded) {
+            return ((PreEncoded<?>) message).getSerializedSize();
+        }
+        return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+
+    /* ----------------------------- GETTERS ----------------------------- */
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    @Override
+    public String toString() {
+        return codec == null ? "off" : codec + " from " + minBytes + " bytes";
+    }
+}
@@ -0,0 +1,81 @@
+package be.msec.labgrpc;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// a response that was serialized once and is written as is to every call it is sent on
+// methods whose responses may be pre-encoded are bound with responses(...), their marshaller
+// accepts both the generated message type and PreEncoded values of it
+public final class PreEncoded<T extends MessageLite> {
+
+    private final T message;
+    private final byte[] bytes;
+
+    private PreEncoded(T message) {
+        this.message = message;
+        this.bytes = message.toByteArray();
+    }
+
+    public static <T extends MessageLite> PreEncoded<T> of(T message) {
+        return new PreEncoded<>(message);
+    }
+
+    public T getMessage() {
+        return message;
+    }
+
+    // shared, must not be changed
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getSerializedSize() {
+        return bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return message.toString();
+    }
+
+    /* ----------------------------- BINDING ----------------------------- */
+    // the service with the response marshaller of the given methods replaced by one that takes PreEncoded values,
+    // the bytes on the wire stay the same so clients use the generated stubs as before
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static ServerServiceDefinition responses(ServerServiceDefinition service, String... methodNames) {
+        String serviceName = service.getServiceDescriptor().getName();
+        Set<String> names = new HashSet<>();
+        for (String methodName : methodNames) {
+            names.add(MethodDescriptor.generateFullMethodName(serviceName, methodName));
+        }
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(serviceName);
+        for (ServerMethodDefinition<?, ?> method : service.getMethods()) {
+            MethodDescriptor<?, ?> descriptor = method.getMethodDescriptor();
+            if (!names.remove(descriptor.getFullMethodName())) {
+                builder.addMethod(method);
+                continue;
+            }
+            MethodDescriptor rebound = descriptor.toBuilder(descriptor.getRequestMarshaller(),
+                    new PreEncodedMarshaller(descriptor.getResponseMarshaller())).build();
+            builder.addMethod(ServerMethodDefinition.create(rebound, (ServerCallHandler) method.getServerCallHandler()));
+        }
+        if (!names.isEmpty()) {
+            throw new IllegalArgumentException("No such methods: " + names);
+        }
+        return builder.build();
+    }
+
+    // the response observer of a method bound with responses(...), which also takes PreEncoded values
+    @SuppressWarnings("unchecked")
+    public static ServerCallStreamObserver<Object> observer(StreamObserver<?> responseObserver) {
+        return (ServerCallStreamObserver<Object>) responseObserver;
+    }
+}
@@ -0,0 +1,51 @@
+package be.msec.labgrpc;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// the marshaller of a method bound with PreEncoded.responses: PreEncoded values are written from their bytes,
+// anything else goes through the generated marshaller
+class PreEncodedMarshaller<T> implements MethodDescriptor.Marshaller<Object> {
+
+    private final MethodDescriptor.Marshaller<T> marshaller;
+
+    PreEncodedMarshaller(MethodDescriptor.Marshaller<T> marshaller) {
+        this.marshaller = marshaller;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public InputStream stream(Object value) {
+        if (value instanceof PreEncoded) {
+            return new BytesStream(((PreEncoded<?>) value).getBytes());
+        }
+        return marshaller.stream((T) value);
+    }
+
+    @Override
+    public Object parse(InputStream stream) {
+        return marshaller.parse(stream);
+    }
+
+    // the framer knows the length up front and copies the shared bytes straight into its buffer
+    private static class BytesStream extends ByteArrayInputStream implements KnownLength, Drainable {
+
+        BytesStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
@@ -2,37 +2,50 @@ package be.msec.labgrpc.client;
 
 import be.msec.labgrpc.*;
 import be.msec.labgrpc.exceptions.UserNotFoundException;
-import io.grpc.ManagedChannel;
+import be.msec.labgrpc.metrics.RpcMetrics;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
-import io.grpc.stub.StreamObserver;
-import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import org.reactivestreams.Publisher;
 
 import javax.annotation.Nullable;
-import java.util.concurrent.TimeUnit;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static be.msec.labgrpc.server.ChatServer.*;
-
+// the JavaFX side of the client, the lists the views show
+// the connection, the streams and the sends are in ChatClientCore, the lists are one subscriber of its publishers
 public class ChatClient {
     /*  -------------------------------- LOGGER -------------------------------- */
     private static final Logger logger = Logger.getLogger(ChatClient.class.getName());
 
     /*  -------------------------------- CONNECTION STUFF -------------------------------- */
-    private final ManagedChannel channel;
-    private final ChatServiceGrpc.ChatServiceStub asyncStub;
-    private final ChatServiceGrpc.ChatServiceBlockingStub blockingStub;
+    private final ChatClientCore core;
 
     /*  -------------------------------- LISTS -------------------------------- */
-    private final ObservableList<String> messagesPublic;
-    private final ObservableList<String> messagesPrivate;
+    // the newest lines of each conversation, older ones are fetched when the user scrolls back
+    private static final int DEFAULT_MAX_LINES = 500;
+    // items requested from a stream before the FX thread asks for more
+    private static final int UI_BATCH = 64;
+    private final MessageWindow messagesPublic;
+    private final MessageWindow messagesPrivate;
+    // joined rooms by name, with the subscription that fills them
+    private final Map<String, MessageWindow> rooms;
+    private final Map<String, UiSubscriber<ChatEnvelope>> roomSubscribers;
+    private final int maxLines;
     private final ObservableList<String> users;
-
-    /*  -------------------------------- USER INFO -------------------------------- */
-    private User user;
+    // same names as users, to check membership without scanning the list (FX thread only)
+    private final Set<String> onlineUsers;
+    private long presenceVersion = -1;
+    // every change from the gRPC threads reaches the lists through here, in batches
+    private final UiBatcher ui;
 
     /*  -------------------------------- CONSTRUCTORS -------------------------------- */
     public ChatClient(String hostname, int portNumber) {
@@ -40,37 +53,50 @@ public class ChatClient {
     }
 
     public ChatClient(ManagedChannelBuilder<?> channelBuilder) {
-        messagesPublic = FXCollections.observableArrayList();
-        messagesPrivate = FXCollections.observableArrayList();
         users = FXCollections.observableArrayList();
+        onlineUsers = new HashSet<>();
+        ui = new UiBatcher();
+        core = new ChatClientCore(channelBuilder);
+        maxLines = Math.max(1, Integer.getInteger("chat.client.maxLines", DEFAULT_MAX_LINES));
+        messagesPublic = new MessageWindow(HistoryRequest.Conversation.PUBLIC, maxLines,
+                request -> core.fetchHistory(request, core.getConnectSequence()), ui);
+        messagesPrivate = new MessageWindow(HistoryRequest.Conversation.PRIVATE, maxLines,
+                request -> core.fetchHistory(request, core.getConnectSequence()), ui);
+        rooms = new ConcurrentHashMap<>();
+        roomSubscribers = new ConcurrentHashMap<>();
 
         /*  -------------------------------- START -------------------------------- */
-        channel = channelBuilder.build();
-        asyncStub = ChatServiceGrpc.newStub(channel);
-        blockingStub = ChatServiceGrpc.newBlockingStub(channel);
+        core.messages().subscribe(new UiSubscriber<>(ui, UI_BATCH, value -> {
+            info("message received from " + value.getSender() + ".");
+            placeInRightMessageList(value);
+        }));
+        core.presence().subscribe(new UiSubscriber<>(ui, UI_BATCH, value -> {
+            info("Presence " + value.getKind() + " (version " + value.getVersion() + ").");
+            ui.run(() -> applyPresence(value));
+        }));
+        core.setReconnectListener(stream -> {
+            if (stream.equals("messages")) {
+                ui.add(messagesPublic, MessageWindow.notice("Connection lost, reconnecting..."));
+            } else if (stream.equals("presence")) {
+                ui.add(messagesPublic, MessageWindow.notice("Server error  user list"));
+            }
+        });
         logger.log(Level.INFO, "Client started");
         logger.setLevel(Level.FINE);
     }
 
     /*  -------------------------------- CONNECT/DISCONNECT -------------------------------- */
     public boolean connectUser(String username) {
-        UserInfo userInfo = UserInfo.newBuilder().setName(username).build();
-        ConnectMessage response;
         try {
-            response = blockingStub.connectUser(userInfo);
+            ConnectMessage response = core.connect(username);
             if (response.getIsConnected()) {
-                user = new User(username);
                 logger.log(Level.INFO, "Successfully connected to server.");
-
-                Platform.runLater(() -> messagesPublic.add("Welcome to the chat " + username + " !"));
-                Platform.runLater(this::syncUserList);
-                Platform.runLater(this::syncMessages);
-
+                ui.add(messagesPublic, MessageWindow.notice("Welcome to the chat " + username + " !"));
                 sendBroadcastMsg(username + " has entered the chat");
                 return true;
             } else {
                 logger.log(Level.WARNING, "Duplicate username (" + username + ") entered");
-                Platform.runLater(() -> messagesPublic.add("Username already taken, choose another one."));
+                ui.add(messagesPublic, MessageWindow.notice("Username already taken, choose another one."));
             }
         } catch (StatusRuntimeException | UserNotFoundException e) {
             logger.log(Level.SEVERE, "Exception" + e.getMessage());
@@ -79,17 +105,15 @@ public class ChatClient {
     }
 
     public void disconnectUser() throws InterruptedException {
-        UserInfo userInfo = UserInfo.newBuilder().setName(user.getName()).build();
-        DisconnectMessage response;
         try {
-            response = blockingStub.disconnectUser(userInfo);
+            DisconnectMessage response = core.disconnect();
             if (response.getIsDisconnected()) {
                 logger.log(Level.INFO, "Successfully disconnected from server.");
-                sendBroadcastMsg(user.getName() + " has left the chat");
-                channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+                sendBroadcastMsg(core.getUser().getName() + " has left the chat");
+                core.shutdown();
             } else {
                 logger.log(Level.WARNING, "Failed to disconnect from server");
-                Platform.runLater(() -> messagesPublic.add("Failed to disconnect from server, try again."));
+                ui.add(messagesPublic, MessageWindow.notice("Failed to disconnect from server, try again."));
             }
         } catch (StatusRuntimeException | UserNotFoundException e) {
             logger.log(Level.SEVERE, "Exception" + e.getMessage());
@@ -99,121 +123,170 @@ public class ChatClient {
     /*  -------------------------------- SENDING MESSAGES -------------------------------- */
     // (send) add the message to the shared message's list at the serverside
     public void sendBroadcastMsg(String text) throws UserNotFoundException {
-
-        if (user != null) {
-            MessageText messageText = MessageText.newBuilder().setText(text).setSender(user.getName()).build();
-            try {
-                info("Broadcasting...");
-                blockingStub.sendBroadcastMsg(messageText);
-            } catch (StatusRuntimeException e) {
-                error(e.getMessage());
-                Platform.runLater(() -> messagesPublic.add("Could not connect with server. Try again."));
-            }
-        } else {
-            throw new UserNotFoundException("Could not find user");
-        }
+        info("Broadcasting...");
+        await(core.sendBroadcast(text), messagesPublic);
     }
 
     public void sendPrivateMsg(String text, String receiverName) throws UserNotFoundException {
+        info("Send private message...");
+        await(core.sendPrivate(text, receiverName), messagesPrivate);
+    }
 
-        if (user != null) {
-            // make standard message
-            MessageText messageText = MessageText.newBuilder().setText(text).setSender(user.getName()).build();
-            // make private message intended for receiver
-            PrivateMessageText privateMessageText = PrivateMessageText.newBuilder().setMessageText(messageText).setReceiver(receiverName).build();
-            try {
-                info("Send private message...");
-                blockingStub.sendPrivateMsg(privateMessageText);
-            } catch (StatusRuntimeException e) {
-                error(e.getMessage());
-                Platform.runLater(() -> messagesPrivate.add("Could not connect with server. Try again."));
-            }
-        } else {
-            throw new UserNotFoundException("Could not find user");
-        }
+    // same as sendBroadcastMsg without waiting for the server, safe to call on the FX thread
+    // the future completes once the server stored the message
+    public CompletableFuture<Empty> sendBroadcastMsgAsync(String text) throws UserNotFoundException {
+        return reportFailure(core.sendBroadcast(text), messagesPublic);
     }
 
-    /*  -------------------------------- GETTING MESSAGES -------------------------------- */
-    // check if their are new message's in the server's message list
-    public void syncMessages() {
-        StreamObserver<MessageText> observer = new StreamObserver<MessageText>() {
-            @Override
-            public void onNext(MessageText value) {
-                info("message received from " + value.getSender() + ".");
-                placeInRightMessageList(value.getText(), value.getSender());
-            }
+    public CompletableFuture<Empty> sendPrivateMsgAsync(String text, String receiverName) throws UserNotFoundException {
+        return reportFailure(core.sendPrivate(text, receiverName), messagesPrivate);
+    }
 
-            @Override
-            public void onError(Throwable t) {
-                error("Server-side error.");
-                Platform.runLater(() -> messagesPublic.add("Server-side error."));
+    // failures are reported in the given message list
+    private <T> CompletableFuture<T> reportFailure(CompletableFuture<T> send, MessageWindow messages) {
+        send.whenComplete((value, t) -> {
+            if (t != null) {
+                error(t.getMessage());
+                ui.add(messages, MessageWindow.notice(Status.fromThrowable(t).getCode() == Status.Code.RESOURCE_EXHAUSTED
+                        ? "Sending too fast, message not sent." : "Could not connect with server. Try again."));
             }
+        });
+        return send;
+    }
 
-            @Override
-            public void onCompleted() {
-            }
-        };
+    private void await(CompletableFuture<?> send, MessageWindow messages) {
         try {
-            asyncStub.syncMessages(UserInfo.newBuilder().setName(user.getName()).build(), observer);
-        } catch (Exception e) {
-            error(e.getMessage());
+            reportFailure(send, messages).join();
+        } catch (RuntimeException e) {
+            // reported in the list already
         }
     }
-    public void placeInRightMessageList(String text, String sender) {
 
-        String[] split = text.split(MESSAGE_TYPE_REGEX);
-        String MESSAGE_ID = split[0];
-        String send = split[1];
-        String content = split[2];
+    // number of sends started but not yet answered by the server
+    public int getInFlight() {
+        return core.getInFlight();
+    }
+
+    public RpcMetrics getRpcMetrics() {
+        return core.getRpcMetrics();
+    }
+
+    // number of sends waiting for a free slot in the window
+    public int getWaitingSends() {
+        return core.getWaitingSends();
+    }
+
+    public boolean isSendWindowFull() {
+        return core.isSendWindowFull();
+    }
+
+    // send many messages in one call, e.g. for bots, returns one ack per message
+    public BatchAck sendBatch(List<OutgoingMessage> messages) throws UserNotFoundException {
+        info("Sending a batch of " + messages.size() + " messages...");
+        return core.sendBatch(messages);
+    }
 
-        switch (MESSAGE_ID) {
-            case PRIVATE_MESSAGE_ID:
-                Platform.runLater(() -> messagesPrivate.add(send + ":" + content));
+    public OutgoingMessage broadcast(String text) {
+        return core.broadcast(text);
+    }
+
+    public OutgoingMessage privateMessage(String text, String receiverName) {
+        return core.privateMessage(text, receiverName);
+    }
+
+    /*  -------------------------------- GETTING MESSAGES -------------------------------- */
+    public void placeInRightMessageList(ChatEnvelope envelope) {
+        switch (envelope.getType()) {
+            case PRIVATE:
+                ui.add(messagesPrivate, envelope);
                 break;
-            case PUBLIC_MESSAGE_ID:
-                Platform.runLater(() -> messagesPublic.add(send + ":" + content));
+            case BROADCAST:
+            case MISSED:
+                ui.add(messagesPublic, envelope);
                 break;
         }
     }
 
-    /*  -------------------------------- GETTING USER INFO -------------------------------- */
-    public void syncUserList() {
-        StreamObserver<UserInfo> observer = new StreamObserver<UserInfo>() {
-            @Override
-            public void onNext(UserInfo value) {
-                info("Public message received from " + value.getName() + ".");
-                Platform.runLater(() -> {
-
-                    if(!users.contains(value.getName())){
-                        users.add(value.getName());
-                    }
-
-                    logger.log(Level.INFO, value.getName() + " added to list");
-                });
-            }
+    /*  -------------------------------- ROOMS -------------------------------- */
+    // join the room and start receiving its messages, returns null if the server refused
+    public MessageWindow joinRoom(String room) throws UserNotFoundException {
+        RoomInfo info = core.joinRoom(room);
+        if (!info.getOk()) {
+            return null;
+        }
+        long joined = info.getLastSequence();
+        MessageWindow window = new MessageWindow(HistoryRequest.Conversation.ROOM, maxLines,
+                request -> core.fetchHistory(request.setRoom(room), joined), ui);
+        rooms.put(room, window);
+        Publisher<ChatEnvelope> messages = core.room(room);
+        if (messages != null) {
+            UiSubscriber<ChatEnvelope> subscriber = new UiSubscriber<>(ui, UI_BATCH, value -> ui.add(window, value));
+            roomSubscribers.put(room, subscriber);
+            messages.subscribe(subscriber);
+        }
+        return window;
+    }
 
-            @Override
-            public void onError(Throwable t) {
-                error("Server error.");
-                Platform.runLater(() -> messagesPublic.add("Server error  user list"));
+    public void leaveRoom(String room) {
+        if (rooms.remove(room) != null) {
+            UiSubscriber<ChatEnvelope> subscriber = roomSubscribers.remove(room);
+            if (subscriber != null) {
+                subscriber.cancel();
             }
+            core.leaveRoom(room);
+        }
+    }
 
-            @Override
-            public void onCompleted() {
+    // completes with the ack of the server, a refused message is also reported in the room
+    public CompletableFuture<MessageAck> sendRoomMsgAsync(String room, String text) throws UserNotFoundException {
+        MessageWindow window = rooms.get(room);
+        if (window == null) {
+            throw new UserNotFoundException("Not in room " + room);
+        }
+        CompletableFuture<MessageAck> ack = reportFailure(core.sendRoom(room, text), window);
+        ack.thenAccept(value -> {
+            if (!value.getAccepted()) {
+                ui.add(window, MessageWindow.notice(value.getError()));
             }
-        };
-        try {
-            asyncStub.syncUserList(Empty.newBuilder().build(), observer);
-        } catch (Exception e) {
-            error(e.getMessage());
+        });
+        return ack;
+    }
+
+    public MessageWindow getRoom(String room) {
+        return rooms.get(room);
+    }
+
+    /*  -------------------------------- GETTING USER INFO -------------------------------- */
+    // runs on the FX thread
+    private void applyPresence(PresenceEvent event) {
+        switch (event.getKind()) {
+            case SNAPSHOT:
+                onlineUsers.clear();
+                onlineUsers.addAll(event.getUsersList());
+                users.setAll(event.getUsersList());
+                presenceVersion = event.getVersion();
+                return;
+            case JOINED:
+                if (event.getVersion() > presenceVersion && onlineUsers.add(event.getName())) {
+                    users.add(event.getName());
+                    logger.log(Level.INFO, event.getName() + " added to list");
+                }
+                break;
+            case LEFT:
+                if (event.getVersion() > presenceVersion && onlineUsers.remove(event.getName())) {
+                    users.remove(event.getName());
+                    logger.log(Level.INFO, event.getName() + " removed from list");
+                }
+                break;
         }
+        presenceVersion = Math.max(presenceVersion, event.getVersion());
     }
 
-    public ObservableList<String> getPublicMessages() {
+    public MessageWindow getPublicMessages() {
         return messagesPublic;
     }
 
-    public ObservableList<String> getPrivateMessages() {
+    public MessageWindow getPrivateMessages() {
         return messagesPrivate;
     }
 
@@ -222,7 +295,12 @@ public class ChatClient {
     }
 
     public User getUser() {
-        return user;
+        return core.getUser();
+    }
+
+    // the client without the lists, for subscribing to the streams directly
+    public ChatClientCore getCore() {
+        return core;
     }
 
     private static void info(String msg, @Nullable Object... params) {
@@ -233,4 +311,3 @@ public class ChatClient {
         logger.log(Level.WARNING, msg, params);
     }
 }
-
@@ -0,0 +1,433 @@
+package be.msec.labgrpc.client;
+
+import be.msec.labgrpc.*;
+import be.msec.labgrpc.exceptions.UserNotFoundException;
+import be.msec.labgrpc.metrics.ClientMetricsInterceptor;
+import be.msec.labgrpc.metrics.MetricRegistry;
+import be.msec.labgrpc.metrics.RpcMetrics;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.reactivestreams.Publisher;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// the client without any UI: connects, sends, and publishes what the server streams
+// messages, presence and room messages are Reactive Streams publishers with a bounded buffer per subscriber,
+// the server streams are only read as fast as the slowest subscriber takes items
+// broken streams are reopened after the last received item, the publishers stay the same
+// ChatClient is the JavaFX layer on top of this, bots and tests can subscribe directly
+public class ChatClientCore {
+
+    private static final Logger logger = Logger.getLogger(ChatClientCore.class.getName());
+
+    /*  -------------------------------- CONNECTION STUFF -------------------------------- */
+    private final ManagedChannel channel;
+    private final ChatServiceGrpc.ChatServiceStub asyncStub;
+    private final ChatServiceGrpc.ChatServiceBlockingStub blockingStub;
+    private final ChatServiceGrpc.ChatServiceFutureStub futureStub;
+    // timing, status codes and sizes of every call, -Dchat.rpc.slowCallMillis keeps the slow ones
+    private final RpcMetrics rpcMetrics;
+    // large requests are gzipped, the server compresses its large responses the same way
+    private final CompressionPolicy compression;
+
+    /*  -------------------------------- SEND WINDOW -------------------------------- */
+    // most sends waiting for the server at once, -Dchat.client.maxInFlight=32
+    private static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    private final int maxInFlight;
+    // sends that did not fit in the window, started in order when a send completes (guarded by itself)
+    private final Deque<Runnable> waitingSends;
+    // beyond this many waiting sends a send fails right away, -Dchat.client.maxWaiting=256
+    private static final int DEFAULT_MAX_WAITING = 256;
+    private final int maxWaiting;
+    private int inFlight;
+
+    /*  -------------------------------- PUBLISHERS -------------------------------- */
+    // items each subscriber may have buffered, -Dchat.client.bufferSize=256
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+    private final int bufferSize;
+    private final ChatPublisher<ChatEnvelope> messages;
+    private final ChatPublisher<PresenceEvent> presence;
+    // joined rooms by name
+    private final Map<String, ChatPublisher<ChatEnvelope>> rooms;
+
+    /*  -------------------------------- USER INFO -------------------------------- */
+    private volatile User user;
+    // sequence number of the last message received, sent along when the message stream is reopened
+    private volatile long lastSequence = -1;
+    // last sequence number when the user connected, messages up to it are only available as history pages
+    private volatile long connectSequence;
+
+    /*  -------------------------------- RECONNECT -------------------------------- */
+    private static final long RESYNC_DELAY_MILLIS = 1000;
+    private final ScheduledExecutorService resyncExecutor;
+    // told the name of a stream that broke and is being reopened
+    private volatile Consumer<String> reconnectListener = stream -> {
+    };
+
+    /*  -------------------------------- CONSTRUCTORS -------------------------------- */
+    public ChatClientCore(String hostname, int portNumber) {
+        this(ManagedChannelBuilder.forAddress(hostname, portNumber).usePlaintext(true));
+    }
+
+    public ChatClientCore(ManagedChannelBuilder<?> channelBuilder) {
+        maxInFlight = Math.max(1, Integer.getInteger("chat.client.maxInFlight", DEFAULT_MAX_IN_FLIGHT));
+        waitingSends = new ArrayDeque<>();
+        maxWaiting = Math.max(0, Integer.getInteger("chat.client.maxWaiting", DEFAULT_MAX_WAITING));
+        bufferSize = Math.max(1, Integer.getInteger("chat.client.bufferSize", DEFAULT_BUFFER_SIZE));
+        messages = new ChatPublisher<>(bufferSize);
+        presence = new ChatPublisher<>(bufferSize);
+        rooms = new ConcurrentHashMap<>();
+        resyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-resync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compression = CompressionPolicy.fromSystemProperties();
+        rpcMetrics = RpcMetrics.fromSystemProperties(new MetricRegistry(), "client");
+        channel = channelBuilder.intercept(new ClientMetricsInterceptor(rpcMetrics)).build();
+        asyncStub = ChatServiceGrpc.newStub(channel);
+        blockingStub = ChatServiceGrpc.newBlockingStub(channel);
+        futureStub = ChatServiceGrpc.newFutureStub(channel);
+    }
+
+    /*  -------------------------------- CONNECT/DISCONNECT -------------------------------- */
+    // on success the message and presence streams are opened, subscribe before to receive everything
+    // throws StatusRuntimeException when the server cannot be reached
+    public ConnectMessage connect(String username) {
+        ConnectMessage response = blockingStub.connectUser(UserInfo.newBuilder().setName(username).build());
+        if (response.getIsConnected()) {
+            user = new User(username);
+            lastSequence = response.getLastSequence();
+            connectSequence = response.getLastSequence();
+            syncMessages();
+            syncPresence();
+        }
+        return response;
+    }
+
+    public DisconnectMessage disconnect() throws UserNotFoundException {
+        return blockingStub.disconnectUser(UserInfo.newBuilder().setName(requireUser().getName()).build());
+    }
+
+    // completes the publishers and closes the channel
+    public void shutdown() throws InterruptedException {
+        resyncExecutor.shutdownNow();
+        messages.complete();
+        presence.complete();
+        for (ChatPublisher<ChatEnvelope> room : rooms.values()) {
+            room.complete();
+        }
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private boolean isShutdown() {
+        return channel.isShutdown() || resyncExecutor.isShutdown();
+    }
+
+    public void setReconnectListener(Consumer<String> reconnectListener) {
+        this.reconnectListener = reconnectListener;
+    }
+
+    /*  -------------------------------- SENDING MESSAGES -------------------------------- */
+    // the futures complete once the server stored the message, safe to call from any thread
+    public CompletableFuture<Empty> sendBroadcast(String text) throws UserNotFoundException {
+        MessageText messageText = MessageText.newBuilder().setText(text).setSender(requireUser().getName()).build();
+        return pipelined(() -> futureStub.sendBroadcastMsg(messageText));
+    }
+
+    public CompletableFuture<Empty> sendPrivate(String text, String receiverName) throws UserNotFoundException {
+        PrivateMessageText privateMessageText = PrivateMessageText.newBuilder()
+                .setMessageText(MessageText.newBuilder().setText(text).setSender(requireUser().getName()))
+                .setReceiver(receiverName).build();
+        return pipelined(() -> futureStub.sendPrivateMsg(privateMessageText));
+    }
+
+    // start the call when the window has room, otherwise once an earlier send completes
+    // when maxWaiting sends wait already the future fails with RESOURCE_EXHAUSTED, the caller sends slower or retries
+    private <T> CompletableFuture<T> pipelined(Supplier<ListenableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> Futures.addCallback(call.get(), new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                sendCompleted();
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                sendCompleted();
+                result.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        synchronized (waitingSends) {
+            if (inFlight >= maxInFlight) {
+                if (waitingSends.size() >= maxWaiting) {
+                    result.completeExceptionally(Status.RESOURCE_EXHAUSTED
+                            .withDescription(waitingSends.size() + " sends wait for the server already").asRuntimeException());
+                } else {
+                    waitingSends.add(start);
+                }
+                return result;
+            }
+            inFlight++;
+        }
+        start.run();
+        return result;
+    }
+
+    // the slot of a completed send goes to the oldest waiting send
+    private void sendCompleted() {
+        Runnable next;
+        synchronized (waitingSends) {
+            next = waitingSends.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+    // number of sends started but not yet answered by the server
+    public int getInFlight() {
+        synchronized (waitingSends) {
+            return inFlight;
+        }
+    }
+
+    // number of sends waiting for a free slot in the window
+    public int getWaitingSends() {
+        synchronized (waitingSends) {
+            return waitingSends.size();
+        }
+    }
+
+    // true while a new send would fail, a sender that checks it before sending never sees RESOURCE_EXHAUSTED
+    public boolean isSendWindowFull() {
+        synchronized (waitingSends) {
+            return inFlight >= maxInFlight && waitingSends.size() >= maxWaiting;
+        }
+    }
+
+    // send many messages in one call, e.g. for bots, returns one ack per message
+    public BatchAck sendBatch(List<OutgoingMessage> batch) throws UserNotFoundException {
+        requireUser();
+        MessageBatch request = MessageBatch.newBuilder().addAllMessages(batch).build();
+        String codec = compression.codecFor(request);
+        return (codec == null ? blockingStub : blockingStub.withCompression(codec)).sendBatch(request);
+    }
+
+    public OutgoingMessage broadcast(String text) {
+        return OutgoingMessage.newBuilder()
+                .setBroadcast(MessageText.newBuilder().setText(text).setSender(user.getName()))
+                .build();
+    }
+
+    public OutgoingMessage privateMessage(String text, String receiverName) {
+        return OutgoingMessage.newBuilder()
+                .setPrivateMessage(PrivateMessageText.newBuilder()
+                        .setMessageText(MessageText.newBuilder().setText(text).setSender(user.getName()))
+                        .setReceiver(receiverName))
+                .build();
+    }
+
+    /*  -------------------------------- GETTING MESSAGES -------------------------------- */
+    // broadcasts and the private messages of this user, in the order the server stored them
+    public Publisher<ChatEnvelope> messages() {
+        return messages;
+    }
+
+    // a snapshot of the online users every time the stream (re)opens, then who joined or left
+    public Publisher<PresenceEvent> presence() {
+        return presence;
+    }
+
+    // when the stream breaks it is reopened from the last received message, so nothing sent in between is lost
+    private void syncMessages() {
+        SyncRequest request = SyncRequest.newBuilder().setName(user.getName()).setLastSequence(lastSequence).build();
+        asyncStub.withWaitForReady().resumeMessages(request, new PublishingObserver<SyncRequest, ChatEnvelope>(messages, "messages") {
+            @Override
+            void received(ChatEnvelope value) {
+                // never backwards, the stream resumes after the newest message received
+                lastSequence = Math.max(lastSequence, value.getId());
+            }
+
+            @Override
+            void reopen() {
+                syncMessages();
+            }
+        });
+        messages.replenish();
+    }
+
+    private void syncPresence() {
+        asyncStub.withWaitForReady().syncPresence(Empty.getDefaultInstance(), new PublishingObserver<Empty, PresenceEvent>(presence, "presence") {
+            @Override
+            void reopen() {
+                // a new stream starts with a new snapshot
+                syncPresence();
+            }
+        });
+        presence.replenish();
+    }
+
+    // a page of older messages of this user, the newest page ends where the message stream started
+    public CompletableFuture<HistoryPage> fetchHistory(HistoryRequest.Builder request, long streamStart) {
+        if (request.getBefore() == 0) {
+            request.setBefore(streamStart + 1);
+        }
+        HistoryRequest historyRequest = request.setName(user.getName()).build();
+        CompletableFuture<HistoryPage> result = new CompletableFuture<>();
+        Futures.addCallback(futureStub.fetchHistory(historyRequest), new FutureCallback<HistoryPage>() {
+            @Override
+            public void onSuccess(HistoryPage page) {
+                result.complete(page);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /*  -------------------------------- ROOMS -------------------------------- */
+    // join the room and start its stream, see room(name) for the messages
+    public RoomInfo joinRoom(String room) throws UserNotFoundException {
+        RoomInfo info = blockingStub.joinRoom(RoomRequest.newBuilder().setRoom(room).setName(requireUser().getName()).build());
+        if (info.getOk()) {
+            ChatPublisher<ChatEnvelope> publisher = new ChatPublisher<>(bufferSize);
+            rooms.put(room, publisher);
+            syncRoom(room, publisher, info.getLastSequence());
+        }
+        return info;
+    }
+
+    public void leaveRoom(String room) {
+        ChatPublisher<ChatEnvelope> publisher = rooms.remove(room);
+        if (publisher != null) {
+            blockingStub.leaveRoom(RoomRequest.newBuilder().setRoom(room).setName(user.getName()).build());
+            publisher.complete();
+        }
+    }
+
+    // the messages of a joined room, null if the room is not joined
+    public Publisher<ChatEnvelope> room(String room) {
+        return rooms.get(room);
+    }
+
+    public CompletableFuture<MessageAck> sendRoom(String room, String text) throws UserNotFoundException {
+        RoomMessage roomMessage = RoomMessage.newBuilder().setRoom(room)
+                .setMessageText(MessageText.newBuilder().setText(text).setSender(requireUser().getName())).build();
+        return pipelined(() -> futureStub.sendRoomMsg(roomMessage));
+    }
+
+    // like syncMessages, reopened after the last received message of the room while this join of the room lasts
+    // the position is kept by the stream itself, so a stream of an earlier join cannot move it
+    private void syncRoom(String room, ChatPublisher<ChatEnvelope> publisher, long after) {
+        asyncStub.withWaitForReady().syncRoom(RoomSyncRequest.newBuilder()
+                .setRoom(room).setName(user.getName()).setLastSequence(after).build(),
+                new PublishingObserver<RoomSyncRequest, ChatEnvelope>(publisher, "room " + room) {
+                    private volatile long lastSequence = after;
+
+                    @Override
+                    void received(ChatEnvelope value) {
+                        lastSequence = Math.max(lastSequence, value.getId());
+                    }
+
+                    @Override
+                    void reopen() {
+                        if (rooms.get(room) == publisher) {
+                            syncRoom(room, publisher, lastSequence);
+                        }
+                    }
+                });
+        publisher.replenish();
+    }
+
+    /*  -------------------------------- GETTERS -------------------------------- */
+    public User getUser() {
+        return user;
+    }
+
+    public long getConnectSequence() {
+        return connectSequence;
+    }
+
+    public RpcMetrics getRpcMetrics() {
+        return rpcMetrics;
+    }
+
+    private User requireUser() throws UserNotFoundException {
+        User current = user;
+        if (current == null) {
+            throw new UserNotFoundException("Could not find user");
+        }
+        return current;
+    }
+
+    /*  -------------------------------- STREAMS -------------------------------- */
+    // feeds one call of a server stream into a publisher, reading only as fast as the publisher allows
+    private abstract class PublishingObserver<ReqT, T> implements ClientResponseObserver<ReqT, T> {
+        private final ChatPublisher<T> publisher;
+        private final String stream;
+
+        PublishingObserver(ChatPublisher<T> publisher, String stream) {
+            this.publisher = publisher;
+            this.stream = stream;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+            publisher.attach(requestStream);
+        }
+
+        @Override
+        public void onNext(T value) {
+            received(value);
+            publisher.next(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            publisher.detach();
+            logger.log(Level.WARNING, "Stream " + stream + " broke: " + t.getMessage());
+            if (isShutdown()) {
+                return;
+            }
+            reconnectListener.accept(stream);
+            resyncExecutor.schedule(this::reopen, RESYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onCompleted() {
+            publisher.detach();
+        }
+
+        // called before the value is published
+        void received(T value) {
+        }
+
+        abstract void reopen();
+    }
+}
@@ -0,0 +1,212 @@
+package be.msec.labgrpc.client;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hands the items of one server stream to any number of subscribers, each with its own bounded buffer
+// the server stream is only asked for as many items as the fullest buffer still has room for,
+// so a slow subscriber slows the stream down (the server keeps the rest) instead of filling the heap
+// a subscriber receives the items that arrive after it subscribed, items that arrive while nobody
+// is subscribed are kept for the next subscriber
+public class ChatPublisher<T> implements Publisher<T> {
+
+    private final int bufferSize;
+    // ask the server for more once at least this many items fit
+    private final int refill;
+    private final List<BufferedSubscription> subscriptions;
+    // the fields below are guarded by this
+    private final Queue<T> unclaimed;
+    private ClientCallStreamObserver<?> upstream;
+    // items asked from the server that did not arrive yet
+    private long outstanding;
+    private boolean completed;
+
+    public ChatPublisher(int bufferSize) {
+        this.bufferSize = Math.max(1, bufferSize);
+        this.refill = Math.max(1, this.bufferSize / 4);
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.unclaimed = new ArrayDeque<>();
+    }
+
+    /* ----------------------------- SUBSCRIBERS ----------------------------- */
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        BufferedSubscription subscription = new BufferedSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        synchronized (this) {
+            if (subscriptions.isEmpty()) {
+                T item;
+                while ((item = unclaimed.poll()) != null) {
+                    subscription.offer(item);
+                }
+            }
+            subscriptions.add(subscription);
+            if (completed) {
+                subscription.done = true;
+            }
+        }
+        subscription.drain();
+        replenish();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /* ----------------------------- UPSTREAM ----------------------------- */
+    // a new call of the server stream, in beforeStart of its ClientResponseObserver
+    // the stub asks for the first item itself when the call starts
+    synchronized void attach(ClientCallStreamObserver<?> call) {
+        call.disableAutoInboundFlowControl();
+        upstream = call;
+        outstanding = 1;
+    }
+
+    // the call broke, nothing is requested until the next attach
+    synchronized void detach() {
+        upstream = null;
+        outstanding = 0;
+    }
+
+    // an item of the server stream, calls come one at a time
+    void next(T item) {
+        synchronized (this) {
+            outstanding = Math.max(0, outstanding - 1);
+            if (subscriptions.isEmpty()) {
+                unclaimed.offer(item);
+                return;
+            }
+            for (BufferedSubscription subscription : subscriptions) {
+                subscription.offer(item);
+            }
+        }
+        for (BufferedSubscription subscription : subscriptions) {
+            subscription.drain();
+        }
+    }
+
+    // no more items, the subscribers complete once they received what is buffered
+    void complete() {
+        synchronized (this) {
+            completed = true;
+            upstream = null;
+            for (BufferedSubscription subscription : subscriptions) {
+                subscription.done = true;
+            }
+        }
+        for (BufferedSubscription subscription : subscriptions) {
+            subscription.drain();
+        }
+    }
+
+    // ask the server for what fits in the fullest buffer, in chunks so it is not asked for every item
+    void replenish() {
+        synchronized (this) {
+            if (upstream == null || subscriptions.isEmpty()) {
+                return;
+            }
+            int free = bufferSize;
+            for (BufferedSubscription subscription : subscriptions) {
+                free = Math.min(free, bufferSize - subscription.size.get());
+            }
+            long wanted = free - outstanding;
+            if (wanted >= refill || (outstanding == 0 && wanted > 0)) {
+                outstanding += wanted;
+                upstream.request((int) wanted);
+            }
+        }
+    }
+
+    /* ----------------------------- SUBSCRIPTION ----------------------------- */
+    private class BufferedSubscription implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final Queue<T> buffer;
+        private final AtomicInteger size;
+        private final AtomicLong requested;
+        // number of drain requests, only the caller that raises it from 0 delivers
+        private final AtomicInteger wip;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+
+        BufferedSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ConcurrentLinkedQueue<>();
+            this.size = new AtomicInteger();
+            this.requested = new AtomicLong();
+            this.wip = new AtomicInteger();
+        }
+
+        void offer(T item) {
+            if (!cancelled) {
+                buffer.offer(item);
+                size.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " items, must be positive (rule 3.9)"));
+                return;
+            }
+            long current;
+            do {
+                current = requested.get();
+            } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            buffer.clear();
+            size.set(0);
+            // the other subscribers may have room for more now
+            replenish();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                boolean delivered = false;
+                while (!cancelled && requested.get() > 0) {
+                    T item = buffer.poll();
+                    if (item == null) {
+                        break;
+                    }
+                    size.decrementAndGet();
+                    requested.decrementAndGet();
+                    subscriber.onNext(item);
+                    delivered = true;
+                }
+                if (!cancelled && done && buffer.isEmpty()) {
+                    cancelled = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                }
+                if (delivered) {
+                    replenish();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package be.msec.labgrpc.client;
+
+import be.msec.labgrpc.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// client for the chatSession stream: connect, send and receive over one call
+// knows nothing about the UI, everything that arrives is handed to the listener on a gRPC thread
+public class ChatSessionClient {
+
+    private static final Logger logger = Logger.getLogger(ChatSessionClient.class.getName());
+
+    public interface Listener {
+        void onConnected(ConnectMessage connected);
+
+        void onMessage(ChatEnvelope message);
+
+        void onPresence(PresenceEvent event);
+
+        // the session ended, t is null when it was closed normally
+        void onClosed(Throwable t);
+    }
+
+    private final ManagedChannel channel;
+    private final ChatServiceGrpc.ChatServiceStub asyncStub;
+    private final Listener listener;
+    // sends waiting for their ack, by correlation id
+    private final Map<Long, CompletableFuture<MessageAck>> pending;
+    private final AtomicLong nextCorrelationId;
+    private StreamObserver<ClientFrame> requests;
+    private volatile long lastSequence = -1;
+
+    public ChatSessionClient(String hostname, int portNumber, Listener listener) {
+        this(ManagedChannelBuilder.forAddress(hostname, portNumber).usePlaintext(true), listener);
+    }
+
+    public ChatSessionClient(ManagedChannelBuilder<?> channelBuilder, Listener listener) {
+        this.channel = channelBuilder.build();
+        this.asyncStub = ChatServiceGrpc.newStub(channel);
+        this.listener = listener;
+        this.pending = new ConcurrentHashMap<>();
+        this.nextCorrelationId = new AtomicLong();
+    }
+
+    /*  -------------------------------- OPEN/CLOSE -------------------------------- */
+    // open the session, with lastSequence >= 0 the messages after it are replayed first
+    public synchronized void open(String userName, long lastSequence) {
+        requests = asyncStub.chatSession(new StreamObserver<ServerFrame>() {
+            @Override
+            public void onNext(ServerFrame frame) {
+                receive(frame);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.WARNING, "Session failed: " + Status.fromThrowable(t));
+                ended();
+                failPending(t);
+                listener.onClosed(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                ended();
+                failPending(Status.UNAVAILABLE.withDescription("Session closed").asRuntimeException());
+                listener.onClosed(null);
+            }
+        });
+        requests.onNext(ClientFrame.newBuilder()
+                .setOpen(SyncRequest.newBuilder().setName(userName).setLastSequence(lastSequence)).build());
+    }
+
+    public synchronized void close() {
+        if (requests != null) {
+            requests.onNext(ClientFrame.newBuilder().setClose(Empty.getDefaultInstance()).build());
+            requests.onCompleted();
+            requests = null;
+        }
+    }
+
+    // the server ended the call, nothing can be sent on it anymore
+    private synchronized void ended() {
+        requests = null;
+    }
+
+    public void shutdown() throws InterruptedException {
+        close();
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /*  -------------------------------- SENDING MESSAGES -------------------------------- */
+    // completes with the ack of the server, once the message is stored
+    public CompletableFuture<MessageAck> send(OutgoingMessage message) {
+        long correlationId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<MessageAck> ack = new CompletableFuture<>();
+        pending.put(correlationId, ack);
+        synchronized (this) {
+            if (requests == null) {
+                pending.remove(correlationId);
+                ack.completeExceptionally(new IllegalStateException("Session is not open"));
+                return ack;
+            }
+            requests.onNext(ClientFrame.newBuilder().setSend(message).setCorrelationId(correlationId).build());
+        }
+        return ack;
+    }
+
+    public CompletableFuture<MessageAck> broadcast(String sender, String text) {
+        return send(OutgoingMessage.newBuilder()
+                .setBroadcast(MessageText.newBuilder().setSender(sender).setText(text)).build());
+    }
+
+    public CompletableFuture<MessageAck> privateMessage(String sender, String text, String receiver) {
+        return send(OutgoingMessage.newBuilder()
+                .setPrivateMessage(PrivateMessageText.newBuilder()
+                        .setMessageText(MessageText.newBuilder().setSender(sender).setText(text))
+                        .setReceiver(receiver)).build());
+    }
+
+    /*  -------------------------------- RECEIVING -------------------------------- */
+    private void receive(ServerFrame frame) {
+        switch (frame.getFrameCase()) {
+            case CONNECTED:
+                listener.onConnected(frame.getConnected());
+                break;
+            case MESSAGE:
+                lastSequence = Math.max(lastSequence, frame.getMessage().getId());
+                listener.onMessage(frame.getMessage());
+                break;
+            case PRESENCE:
+                listener.onPresence(frame.getPresence());
+                break;
+            case ACK:
+                CompletableFuture<MessageAck> ack = pending.remove(frame.getCorrelationId());
+                if (ack != null) {
+                    ack.complete(frame.getAck());
+                }
+                break;
+            default:
+                logger.log(Level.WARNING, "Empty frame from server");
+        }
+    }
+
+    private void failPending(Throwable t) {
+        for (Long correlationId : pending.keySet()) {
+            CompletableFuture<MessageAck> ack = pending.remove(correlationId);
+            if (ack != null) {
+                ack.completeExceptionally(t);
+            }
+        }
+    }
+}
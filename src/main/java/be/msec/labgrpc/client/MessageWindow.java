@@ -0,0 +1,159 @@
+package be.msec.labgrpc.client;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.HistoryPage;
+import be.msec.labgrpc.HistoryRequest;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// the lines of one conversation the client keeps in memory, at most maxLines of them
+// older lines are fetched from the server one page at a time when the user scrolls back, the newest lines make room
+// for them; while scrolled back new lines are only added as long as they fit, once one did not the window is
+// detached from the live end and the newest page is fetched again when the view returns to the bottom
+// everything except the constructor runs on the FX thread
+public class MessageWindow implements UiBatcher.Target<ChatEnvelope> {
+
+    private static final Logger logger = Logger.getLogger(MessageWindow.class.getName());
+
+    private final ObservableList<ChatEnvelope> lines;
+    private final int maxLines;
+    private final HistoryRequest.Conversation conversation;
+    // asks the server for a page, completes on a gRPC thread
+    private final Function<HistoryRequest.Builder, CompletableFuture<HistoryPage>> fetcher;
+    private final UiBatcher ui;
+    private boolean loading;
+    // the server has nothing older than the first line
+    private boolean complete;
+    // the user paged back, the oldest lines are what they read and are not trimmed
+    private boolean scrolledBack;
+    // newer lines than the last one exist on the server but not in the window
+    private boolean detached;
+    // raised when the window is reloaded, a page fetched before that is dropped
+    private int generation;
+
+    public MessageWindow(HistoryRequest.Conversation conversation, int maxLines,
+                         Function<HistoryRequest.Builder, CompletableFuture<HistoryPage>> fetcher, UiBatcher ui) {
+        this.lines = FXCollections.observableArrayList();
+        this.conversation = conversation;
+        this.maxLines = maxLines;
+        this.fetcher = fetcher;
+        this.ui = ui;
+    }
+
+    // a line that is not a chat message, e.g. a connection error
+    public static ChatEnvelope notice(String text) {
+        return ChatEnvelope.newBuilder().setBody(text).build();
+    }
+
+    public static String format(ChatEnvelope line) {
+        return line.getSender().isEmpty() ? line.getBody() : line.getSender() + ":" + line.getBody();
+    }
+
+    /* ----------------------------- NEW LINES ----------------------------- */
+    @Override
+    public void addAll(List<ChatEnvelope> items) {
+        if (detached) {
+            return;
+        }
+        if (scrolledBack) {
+            int room = Math.max(0, maxLines - lines.size());
+            lines.addAll(items.subList(0, Math.min(room, items.size())));
+            detached = room < items.size();
+            return;
+        }
+        lines.addAll(items);
+        int excess = lines.size() - maxLines;
+        if (excess > 0) {
+            lines.remove(0, excess);
+            complete = false;
+        }
+    }
+
+    // the view shows the last line again, trimming the oldest lines resumes
+    // a detached window is replaced by the newest page
+    public void follow() {
+        if (!scrolledBack) {
+            return;
+        }
+        scrolledBack = false;
+        if (detached) {
+            detached = false;
+            generation++;
+            loading = false;
+            complete = false;
+            lines.clear();
+            loadOlder();
+        }
+    }
+
+    /* ----------------------------- OLDER LINES ----------------------------- */
+    // fetch the page before the first line, does nothing while a page is on its way or nothing older exists
+    public void loadOlder() {
+        if (loading || complete) {
+            return;
+        }
+        loading = true;
+        long before = oldestId();
+        int requested = generation;
+        fetcher.apply(HistoryRequest.newBuilder().setConversation(conversation).setBefore(before).setLimit(pageSize()))
+                .whenComplete((page, t) -> ui.run(() -> {
+                    if (requested != generation) {
+                        return;
+                    }
+                    loading = false;
+                    if (t != null) {
+                        logger.log(Level.WARNING, "Could not fetch history: " + t.getMessage());
+                        return;
+                    }
+                    // lines may have been trimmed in the meantime, only add what is still older than the first one
+                    long first = oldestId();
+                    List<ChatEnvelope> older = page.getMessagesList();
+                    int count = 0;
+                    while (count < older.size() && (first == 0 || older.get(count).getId() < first)) {
+                        count++;
+                    }
+                    lines.addAll(0, older.subList(0, count));
+                    complete = page.getNextBefore() == 0;
+                    // the newest lines make room, they are fetched again once the view is back at the bottom
+                    if (before != 0) {
+                        scrolledBack = true;
+                    }
+                    int excess = lines.size() - maxLines;
+                    if (excess > 0) {
+                        lines.remove(lines.size() - excess, lines.size());
+                        detached = true;
+                    }
+                }));
+    }
+
+    // fetch the newest page when the window holds no messages yet, e.g. right after starting the client
+    public void loadIfEmpty() {
+        if (oldestId() == 0) {
+            loadOlder();
+        }
+    }
+
+    // id of the oldest message in the window, 0 if there is none
+    private long oldestId() {
+        for (ChatEnvelope line : lines) {
+            if (line.getId() > 0) {
+                return line.getId();
+            }
+        }
+        return 0;
+    }
+
+    private int pageSize() {
+        return Math.max(1, Math.min(maxLines / 4, 100));
+    }
+
+    public ObservableList<ChatEnvelope> getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,87 @@
+package be.msec.labgrpc.client;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// collects list additions and other UI changes from any thread and applies them on the FX thread
+// at most one flush is pending, everything that arrives before it runs is applied in that same flush,
+// consecutive additions to the same target with one addAll so the list view lays out once
+public class UiBatcher {
+
+    // receives the additions of one flush at once
+    public interface Target<T> {
+        void addAll(List<T> items);
+    }
+
+    private final Queue<Object> pending;
+    private final AtomicBoolean scheduled;
+
+    public UiBatcher() {
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean();
+    }
+
+    // add the item to the target on the FX thread
+    public <T> void add(Target<T> target, T item) {
+        pending.offer(new Addition<>(target, item));
+        schedule();
+    }
+
+    // run the change on the FX thread, in order with the additions
+    public void run(Runnable change) {
+        pending.offer(change);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flush);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flush() {
+        // reset first, so anything that arrives during the flush schedules the next one
+        scheduled.set(false);
+        List<Object> batch = new ArrayList<>();
+        Target<Object> target = null;
+        Object next;
+        while ((next = pending.poll()) != null) {
+            if (next instanceof Addition) {
+                Addition<?> addition = (Addition<?>) next;
+                if (addition.target != target) {
+                    addAll(target, batch);
+                    target = (Target<Object>) addition.target;
+                }
+                batch.add(addition.item);
+            } else {
+                addAll(target, batch);
+                target = null;
+                ((Runnable) next).run();
+            }
+        }
+        addAll(target, batch);
+    }
+
+    private static void addAll(Target<Object> target, List<Object> batch) {
+        if (target != null && !batch.isEmpty()) {
+            target.addAll(new ArrayList<>(batch));
+            batch.clear();
+        }
+    }
+
+    private static class Addition<T> {
+        private final Target<T> target;
+        private final T item;
+
+        Addition(Target<T> target, T item) {
+            this.target = target;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package be.msec.labgrpc.client;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.function.Consumer;
+
+// subscribes the FX lists to a publisher of the client core
+// every item is handed to the UiBatcher right away, more items are only requested from the FX thread,
+// after it applied the earlier ones, so a busy UI slows the stream down instead of queueing flushes
+public class UiSubscriber<T> implements Subscriber<T> {
+
+    private final UiBatcher ui;
+    // queues the item for the FX thread, runs on the gRPC thread
+    private final Consumer<T> handler;
+    private final int batch;
+    private Subscription subscription;
+    // items received since the last request (onNext calls come one at a time)
+    private int pending;
+
+    public UiSubscriber(UiBatcher ui, int batch, Consumer<T> handler) {
+        this.ui = ui;
+        this.batch = Math.max(1, batch);
+        this.handler = handler;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(batch);
+    }
+
+    @Override
+    public void onNext(T item) {
+        handler.accept(item);
+        if (++pending >= Math.max(1, batch / 2)) {
+            int n = pending;
+            pending = 0;
+            ui.run(() -> subscription.request(n));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+    }
+
+    @Override
+    public void onComplete() {
+    }
+
+    public void cancel() {
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+}
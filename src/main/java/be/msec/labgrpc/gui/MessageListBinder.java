@@ -0,0 +1,61 @@
+package be.msec.labgrpc.gui;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.client.MessageWindow;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.ScrollEvent;
+
+// shows the lines of a message window in a list view and loads older lines when it is scrolled to the top,
+// scrolling back to the bottom lets the window follow the new lines again
+public class MessageListBinder {
+
+    private MessageListBinder() {
+    }
+
+    public static void bind(ListView<ChatEnvelope> listView, MessageWindow window) {
+        listView.setItems(window.getLines());
+        listView.setCellFactory(view -> new ListCell<ChatEnvelope>() {
+            @Override
+            protected void updateItem(ChatEnvelope item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null ? null : MessageWindow.format(item));
+            }
+        });
+        // dragging the scroll bar to the top, the scroll bar only exists once the skin is created
+        listView.skinProperty().addListener((observable, oldSkin, skin) -> {
+            ScrollBar bar = verticalScrollBar(listView);
+            if (bar != null) {
+                bar.valueProperty().addListener((o, oldValue, value) -> {
+                    if (value.doubleValue() <= bar.getMin() && oldValue.doubleValue() > bar.getMin()) {
+                        window.loadOlder();
+                    } else if (value.doubleValue() >= bar.getMax() && oldValue.doubleValue() < bar.getMax()) {
+                        window.follow();
+                    }
+                });
+            }
+        });
+        // scrolling up while already at the top, or while all lines fit and there is no scroll bar, and down at the bottom
+        listView.addEventFilter(ScrollEvent.SCROLL, event -> {
+            ScrollBar bar = verticalScrollBar(listView);
+            boolean noBar = bar == null || !bar.isVisible();
+            if (event.getDeltaY() > 0 && (noBar || bar.getValue() <= bar.getMin())) {
+                window.loadOlder();
+            } else if (event.getDeltaY() < 0 && (noBar || bar.getValue() >= bar.getMax())) {
+                window.follow();
+            }
+        });
+    }
+
+    private static ScrollBar verticalScrollBar(ListView<?> listView) {
+        for (Node node : listView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                return (ScrollBar) node;
+            }
+        }
+        return null;
+    }
+}
@@ -1,5 +1,6 @@
 package be.msec.labgrpc.gui;
 
+import be.msec.labgrpc.ChatEnvelope;
 import be.msec.labgrpc.client.ChatApplication;
 import be.msec.labgrpc.exceptions.UserNotFoundException;
 
@@ -29,14 +30,16 @@ public class PrivatChatController {
     @FXML
     private Label chatTitle;
     @FXML
-    private ListView<String> chatPanePrivate;
+    private ListView<ChatEnvelope> chatPanePrivate;
     @FXML
     private Button send_button;
 
 
     public void initialize() {
 
-        chatPanePrivate.setItems(ChatApplication.chatClient.getPrivateMessages());
+        MessageListBinder.bind(chatPanePrivate, ChatApplication.chatClient.getPrivateMessages());
+        // private messages received before this client was started
+        ChatApplication.chatClient.getPrivateMessages().loadIfEmpty();
 
         this.correspondent = ChatApplication.correspondent;
 
@@ -69,7 +72,7 @@ public class PrivatChatController {
         String text = msgField.getText();
         String currentUser = ChatApplication.chatClient.getUser().toString();
         if (!text.isEmpty()) {
-            ChatApplication.chatClient.sendPrivateMsg(text, correspondent);
+            ChatApplication.chatClient.sendPrivateMsgAsync(text, correspondent);
             msgField.clear();
 //            ChatApplication.chatClient.addPrivateMessage("[" + currentUser + "]: " + text);
         } else {
@@ -1,5 +1,6 @@
 package be.msec.labgrpc.gui;
 
+import be.msec.labgrpc.ChatEnvelope;
 import be.msec.labgrpc.client.ChatApplication;
 import be.msec.labgrpc.client.ChatClient;
 import be.msec.labgrpc.exceptions.UserNotFoundException;
@@ -28,12 +29,12 @@ public class PublicChatController {
     @FXML
     private Label chatTitle;
     @FXML
-    private ListView<String> chatPanePublic;
+    private ListView<ChatEnvelope> chatPanePublic;
     @FXML
     private ListView<String> userPane;
 
     public void initialize() {
-        chatPanePublic.setItems(ChatApplication.chatClient.getPublicMessages());
+        MessageListBinder.bind(chatPanePublic, ChatApplication.chatClient.getPublicMessages());
         userPane.setItems(ChatApplication.chatClient.getUsers());
         String loggedInAs = "Logged in as (" + ChatApplication.chatClient.getUser().toString() + ")";
         chatTitle.setText(loggedInAs);// logged in as ...
@@ -52,7 +53,7 @@ public class PublicChatController {
     public void sendBroadcastAction() throws IOException, UserNotFoundException {
         String text = msgField.getText();
         if (!text.isEmpty()) {
-            ChatApplication.chatClient.sendBroadcastMsg(text);
+            ChatApplication.chatClient.sendBroadcastMsgAsync(text);
             msgField.clear();
         } else {
             flashTextField(this.msgField);
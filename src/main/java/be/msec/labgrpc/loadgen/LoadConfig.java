@@ -0,0 +1,101 @@
+package be.msec.labgrpc.loadgen;
+
+// what the load generator simulates, read from -Dchat.load.* properties
+public class LoadConfig {
+
+    public static final String IN_PROCESS = "inprocess";
+
+    private final String target;
+    private final int users;
+    private final double connectRate;
+    private final double privateRatio;
+    private final int messageSize;
+    private final long thinkMillis;
+    private final long durationSeconds;
+    private final int channels;
+
+    public LoadConfig(String target, int users, double connectRate, double privateRatio, int messageSize,
+                      long thinkMillis, long durationSeconds, int channels) {
+        if (users < 1 || connectRate <= 0 || privateRatio < 0 || privateRatio > 1 || channels < 1) {
+            throw new IllegalArgumentException("Invalid load: users=" + users + ", connectRate=" + connectRate
+                    + ", privateRatio=" + privateRatio + ", channels=" + channels);
+        }
+        this.target = target;
+        this.users = users;
+        this.connectRate = connectRate;
+        this.privateRatio = privateRatio;
+        this.messageSize = messageSize;
+        this.thinkMillis = thinkMillis;
+        this.durationSeconds = durationSeconds;
+        this.channels = channels;
+    }
+
+    public static LoadConfig fromSystemProperties() {
+        return new LoadConfig(
+                System.getProperty("chat.load.target", IN_PROCESS),
+                Integer.getInteger("chat.load.users", 100),
+                Double.parseDouble(System.getProperty("chat.load.connectRate", "50")),
+                Double.parseDouble(System.getProperty("chat.load.privateRatio", "0.2")),
+                Integer.getInteger("chat.load.messageSize", 64),
+                Long.getLong("chat.load.thinkMillis", 100),
+                Long.getLong("chat.load.durationSeconds", 30),
+                Integer.getInteger("chat.load.channels", 4));
+    }
+
+    // host:port of a running server, or inprocess to start a server in this JVM
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean isInProcess() {
+        return IN_PROCESS.equals(target);
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    // users connected per second
+    public double getConnectRate() {
+        return connectRate;
+    }
+
+    // share of the messages that is private, to a random other user
+    public double getPrivateRatio() {
+        return privateRatio;
+    }
+
+    // characters in a message body, at least the header that identifies the message
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    // a user waits this long (on average) between the ack of a message and the next send
+    public long getThinkMillis() {
+        return thinkMillis;
+    }
+
+    // how long the users send, after all of them are connected
+    public long getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    // the users are spread over this many channels
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadConfig{" +
+                "target=" + target +
+                ", users=" + users +
+                ", connectRate=" + connectRate +
+                ", privateRatio=" + privateRatio +
+                ", messageSize=" + messageSize +
+                ", thinkMillis=" + thinkMillis +
+                ", durationSeconds=" + durationSeconds +
+                ", channels=" + channels +
+                '}';
+    }
+}
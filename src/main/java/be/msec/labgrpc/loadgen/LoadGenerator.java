@@ -0,0 +1,112 @@
+package be.msec.labgrpc.loadgen;
+
+import be.msec.labgrpc.server.ChatServer;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// simulates chat users without a GUI and reports latency, throughput, lost and duplicated messages
+// first all users connect at the connect rate, then they send for the duration, then the deliveries are awaited
+// gradle loadTest -Dchat.load.users=1000 -Dchat.load.target=localhost:1000
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    // kept here, a logger that nobody references loses its level
+    private static final Logger projectLogger = Logger.getLogger("be.msec.labgrpc");
+    // how long the run waits for the last deliveries after the users stopped sending
+    private static final long DRAIN_MILLIS = 5000;
+
+    private final LoadConfig config;
+    private final LoadStats stats;
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        this.stats = new LoadStats();
+    }
+
+    public LoadStats run() throws IOException, InterruptedException {
+        ChatServer server = null;
+        String target = config.getTarget();
+        if (config.isInProcess()) {
+            target = "load-" + System.nanoTime();
+            server = new ChatServer(InProcessServerBuilder.forName(target), 0);
+            server.start();
+        }
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < config.getChannels(); i++) {
+            channels.add(config.isInProcess()
+                    ? InProcessChannelBuilder.forName(target).build()
+                    : ManagedChannelBuilder.forTarget(target).usePlaintext(true).build());
+        }
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread thread = new Thread(r, "load-user");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        List<SimulatedUser> users = new ArrayList<>();
+        try {
+            logger.log(Level.INFO, "Connecting " + config);
+            long interval = (long) (1e9 / config.getConnectRate());
+            long start = System.nanoTime();
+            for (int i = 0; i < config.getUsers(); i++) {
+                long wait = start + i * interval - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                SimulatedUser user = new SimulatedUser(i, channels.get(i % channels.size()), config, stats, scheduler);
+                if (user.connect()) {
+                    users.add(user);
+                }
+            }
+            logger.log(Level.INFO, users.size() + " users connected, sending for " + config.getDurationSeconds() + "s");
+            // give the last message streams time to be registered before the first broadcast
+            Thread.sleep(200);
+
+            long sendStart = System.nanoTime();
+            for (SimulatedUser user : users) {
+                user.startSending();
+            }
+            TimeUnit.SECONDS.sleep(config.getDurationSeconds());
+            for (SimulatedUser user : users) {
+                user.stopSending();
+            }
+            double seconds = (System.nanoTime() - sendStart) / 1e9;
+            long drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+            while (stats.getLost() > 0 && System.currentTimeMillis() < drainEnd) {
+                Thread.sleep(50);
+            }
+            System.out.println(stats.report(seconds));
+        } finally {
+            for (SimulatedUser user : users) {
+                user.stopSending();
+                user.disconnect();
+            }
+            scheduler.shutdownNow();
+            for (ManagedChannel channel : channels) {
+                channel.shutdownNow();
+            }
+            if (server != null) {
+                server.stop();
+            }
+        }
+        return stats;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // the server and client log every message, far too much under load
+        projectLogger.setLevel(Level.WARNING);
+        logger.setLevel(Level.INFO);
+        new LoadGenerator(LoadConfig.fromSystemProperties()).run();
+    }
+}
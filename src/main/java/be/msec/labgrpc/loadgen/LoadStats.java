@@ -0,0 +1,107 @@
+package be.msec.labgrpc.loadgen;
+
+import be.msec.labgrpc.metrics.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// counted by all simulated users of a run
+public class LoadStats {
+
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    // deliveries the acked messages should cause: every user for a broadcast, sender and receiver for a private message
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder streamFailures = new LongAdder();
+    private final Histogram latency = new Histogram("load_delivery", "time from sending a message to receiving it");
+
+    void connected() {
+        connected.increment();
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    void sent() {
+        sent.increment();
+    }
+
+    void acked(int deliveries) {
+        acked.increment();
+        expected.add(deliveries);
+    }
+
+    void sendFailed() {
+        sendFailures.increment();
+    }
+
+    void delivered(long sentNanos) {
+        delivered.increment();
+        latency.recordSince(sentNanos);
+    }
+
+    void duplicate() {
+        duplicates.increment();
+    }
+
+    void streamFailed() {
+        streamFailures.increment();
+    }
+
+    public long getConnected() {
+        return connected.sum();
+    }
+
+    public long getAcked() {
+        return acked.sum();
+    }
+
+    public long getExpected() {
+        return expected.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    // deliveries that did not arrive (yet)
+    public long getLost() {
+        return Math.max(0, expected.sum() - delivered.sum());
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public String report(double seconds) {
+        return "users connected   " + connected.sum() + " (" + connectFailures.sum() + " failed)\n"
+                + "messages sent     " + sent.sum() + ", acked " + acked.sum() + ", failed " + sendFailures.sum() + "\n"
+                + "throughput        " + rate(acked.sum(), seconds) + " msg/s sent, " + rate(delivered.sum(), seconds) + " msg/s delivered\n"
+                + "deliveries        " + delivered.sum() + " of " + expected.sum() + " expected\n"
+                + "lost              " + getLost() + "\n"
+                + "duplicated        " + duplicates.sum() + "\n"
+                + "broken streams    " + streamFailures.sum() + "\n"
+                + "latency (ms)      p50 " + millis(latency.getPercentile(0.5))
+                + "  p90 " + millis(latency.getPercentile(0.9))
+                + "  p99 " + millis(latency.getPercentile(0.99))
+                + "  p99.9 " + millis(latency.getPercentile(0.999))
+                + "  max " + millis(latency.getMax()) + "\n";
+    }
+
+    private static String rate(long count, double seconds) {
+        return String.format("%.1f", count / seconds);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
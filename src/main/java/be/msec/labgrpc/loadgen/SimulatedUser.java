@@ -0,0 +1,188 @@
+package be.msec.labgrpc.loadgen;
+
+import be.msec.labgrpc.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Channel;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// one headless chat user: connects, receives the message stream and sends messages one at a time
+// a body starts with "#<user>:<number>:<send nanos>:" so receivers can time it and spot losses and duplicates
+public class SimulatedUser {
+
+    private static final String PREFIX = "load";
+
+    private final int index;
+    private final String name;
+    private final LoadConfig config;
+    private final LoadStats stats;
+    private final ScheduledExecutorService scheduler;
+    private final ChatServiceGrpc.ChatServiceBlockingStub blockingStub;
+    private final ChatServiceGrpc.ChatServiceStub asyncStub;
+    private final ChatServiceGrpc.ChatServiceFutureStub futureStub;
+    private final String padding;
+    // numbers of the messages received, by sender (only touched by the stream callbacks, which run one at a time)
+    private final Map<Integer, BitSet> received;
+    // only touched by send, which runs once at a time per user
+    private int sequence;
+    private volatile boolean sending;
+
+    public SimulatedUser(int index, Channel channel, LoadConfig config, LoadStats stats, ScheduledExecutorService scheduler) {
+        this.index = index;
+        this.name = nameOf(index);
+        this.config = config;
+        this.stats = stats;
+        this.scheduler = scheduler;
+        this.blockingStub = ChatServiceGrpc.newBlockingStub(channel);
+        this.asyncStub = ChatServiceGrpc.newStub(channel);
+        this.futureStub = ChatServiceGrpc.newFutureStub(channel);
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < config.getMessageSize(); i++) {
+            pad.append('x');
+        }
+        this.padding = pad.toString();
+        this.received = new HashMap<>();
+    }
+
+    static String nameOf(int index) {
+        return PREFIX + index;
+    }
+
+    /* ----------------------------- CONNECT ----------------------------- */
+    // connect and open the message stream, false if the name was taken or the server could not be reached
+    public boolean connect() {
+        try {
+            if (!blockingStub.connectUser(UserInfo.newBuilder().setName(name).build()).getIsConnected()) {
+                stats.connectFailed();
+                return false;
+            }
+        } catch (StatusRuntimeException e) {
+            stats.connectFailed();
+            return false;
+        }
+        asyncStub.resumeMessages(SyncRequest.newBuilder().setName(name).setLastSequence(-1).build(), new StreamObserver<ChatEnvelope>() {
+            @Override
+            public void onNext(ChatEnvelope envelope) {
+                receive(envelope);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (sending) {
+                    stats.streamFailed();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        stats.connected();
+        return true;
+    }
+
+    public void disconnect() {
+        try {
+            blockingStub.disconnectUser(UserInfo.newBuilder().setName(name).build());
+        } catch (StatusRuntimeException e) {
+            // the server is gone already
+        }
+    }
+
+    /* ----------------------------- SEND ----------------------------- */
+    public void startSending() {
+        sending = true;
+        scheduleNext();
+    }
+
+    public void stopSending() {
+        sending = false;
+    }
+
+    private void scheduleNext() {
+        if (!sending) {
+            return;
+        }
+        long think = config.getThinkMillis();
+        // uniform between 0.5 and 1.5 times the think time, so the users do not send in lockstep
+        long delay = think == 0 ? 0 : think / 2 + ThreadLocalRandom.current().nextLong(think + 1);
+        scheduler.schedule(this::send, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void send() {
+        if (!sending) {
+            return;
+        }
+        String body = "#" + index + ":" + (++sequence) + ":" + System.nanoTime() + ":" + padding;
+        int users = config.getUsers();
+        boolean toPrivate = users > 1 && ThreadLocalRandom.current().nextDouble() < config.getPrivateRatio();
+        MessageText text = MessageText.newBuilder().setSender(name).setText(body).build();
+        int deliveries;
+        ListenableFuture<Empty> ack;
+        if (toPrivate) {
+            int receiver = ThreadLocalRandom.current().nextInt(users - 1);
+            if (receiver >= index) {
+                receiver++;
+            }
+            ack = futureStub.sendPrivateMsg(PrivateMessageText.newBuilder()
+                    .setMessageText(text).setReceiver(nameOf(receiver)).build());
+            // the sender also receives its own private message
+            deliveries = 2;
+        } else {
+            ack = futureStub.sendBroadcastMsg(text);
+            deliveries = (int) stats.getConnected();
+        }
+        stats.sent();
+        Futures.addCallback(ack, new FutureCallback<Empty>() {
+            @Override
+            public void onSuccess(Empty result) {
+                stats.acked(deliveries);
+                scheduleNext();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                stats.sendFailed();
+                scheduleNext();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /* ----------------------------- RECEIVE ----------------------------- */
+    private void receive(ChatEnvelope envelope) {
+        String body = envelope.getBody();
+        if (!body.startsWith("#")) {
+            return;
+        }
+        int first = body.indexOf(':');
+        int second = body.indexOf(':', first + 1);
+        int third = body.indexOf(':', second + 1);
+        if (first < 0 || second < 0 || third < 0) {
+            return;
+        }
+        int sender = Integer.parseInt(body.substring(1, first));
+        int number = Integer.parseInt(body.substring(first + 1, second));
+        long sentNanos = Long.parseLong(body.substring(second + 1, third));
+        BitSet numbers = received.computeIfAbsent(sender, s -> new BitSet());
+        if (numbers.get(number)) {
+            stats.duplicate();
+            return;
+        }
+        numbers.set(number);
+        stats.delivered(sentNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,53 @@
+package be.msec.labgrpc.metrics;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+// records every call made on the channel it is added to, see ManagedChannelBuilder.intercept
+public class ClientMetricsInterceptor implements ClientInterceptor {
+
+    private final RpcMetrics metrics;
+
+    public ClientMetricsInterceptor(RpcMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions,
+                                                               Channel next) {
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+            private RpcMetrics.Call stats;
+
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                stats = metrics.start(method);
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onMessage(RespT message) {
+                        stats.response(message);
+                        super.onMessage(message);
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        stats.end(status);
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+
+            @Override
+            public void sendMessage(ReqT message) {
+                stats.request(message);
+                super.sendMessage(message);
+            }
+        };
+    }
+}
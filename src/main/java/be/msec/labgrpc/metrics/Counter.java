@@ -0,0 +1,36 @@
+package be.msec.labgrpc.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// only goes up, cheap to increment from many threads at once
+public class Counter extends Metric {
+
+    private final LongAdder count;
+
+    public Counter(String name, String help) {
+        super(name, help);
+        this.count = new LongAdder();
+    }
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    protected String getTypeName() {
+        return "counter";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        out.append(getName()).append(' ').append(get()).append('\n');
+    }
+}
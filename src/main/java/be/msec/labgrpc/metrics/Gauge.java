@@ -0,0 +1,28 @@
+package be.msec.labgrpc.metrics;
+
+import java.util.function.LongSupplier;
+
+// a value that is read when the metrics are collected, e.g. the size of a collection
+public class Gauge extends Metric {
+
+    private final LongSupplier value;
+
+    public Gauge(String name, String help, LongSupplier value) {
+        super(name, help);
+        this.value = value;
+    }
+
+    public long get() {
+        return value.getAsLong();
+    }
+
+    @Override
+    protected String getTypeName() {
+        return "gauge";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        out.append(getName()).append(' ').append(get()).append('\n');
+    }
+}
@@ -0,0 +1,126 @@
+package be.msec.labgrpc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// latencies in nanoseconds, recorded without locks
+// every power of two is split in 4 buckets, so a percentile is at most 25% above the real value
+// the text format writes seconds, as the name_seconds summary
+public class Histogram extends Metric {
+
+    // 4 exact buckets for 0..3, then 4 buckets for every power of two up to 2^62
+    private static final int BUCKETS = 4 + 61 * 4;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public Histogram(String name, String help) {
+        super(name, help);
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // another thread raised the max, check again
+        }
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long value) {
+        if (value < 4) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - 2)) & 3;
+        return 4 + (exponent - 2) * 4 + mantissa;
+    }
+
+    // the largest value that falls in the bucket
+    static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = (bucket - 4) / 4 + 2;
+        long mantissa = (bucket - 4) % 4;
+        long lower = (4 + mantissa) << (exponent - 2);
+        return lower + (1L << (exponent - 2)) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // e.g. 0.99 for the 99th percentile, 0 when nothing was recorded
+    // the buckets are read one by one while others record, so the result is approximate under load
+    public long getPercentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    protected String getTypeName() {
+        return "summary";
+    }
+
+    @Override
+    protected String getTextName() {
+        return getName() + "_seconds";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        String name = getTextName();
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(getPercentile(quantile))).append('\n');
+        }
+        out.append(name).append("_count ").append(getCount()).append('\n');
+        out.append(name).append("_sum ").append(seconds(getSum())).append('\n');
+        out.append(name).append("_max ").append(seconds(getMax())).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
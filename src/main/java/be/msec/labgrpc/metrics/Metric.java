@@ -0,0 +1,38 @@
+package be.msec.labgrpc.metrics;
+
+// a named value of the registry, written in the text format of the scrape endpoint
+public abstract class Metric {
+
+    private final String name;
+    private final String help;
+
+    protected Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    // # HELP and # TYPE lines followed by the samples
+    public void writeText(StringBuilder out) {
+        String textName = getTextName();
+        out.append("# HELP ").append(textName).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(textName).append(' ').append(getTypeName()).append('\n');
+        writeSamples(out);
+    }
+
+    // the name in the text format, with the unit if it has one
+    protected String getTextName() {
+        return name;
+    }
+
+    protected abstract String getTypeName();
+
+    protected abstract void writeSamples(StringBuilder out);
+}
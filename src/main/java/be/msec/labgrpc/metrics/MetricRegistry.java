@@ -0,0 +1,59 @@
+package be.msec.labgrpc.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+// the metrics of one server or client, by name
+// asking for a name twice returns the metric that was registered first
+public class MetricRegistry {
+
+    private final ConcurrentMap<String, Metric> metrics;
+
+    public MetricRegistry() {
+        this.metrics = new ConcurrentSkipListMap<>();
+    }
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help), Counter.class);
+    }
+
+    public Gauge gauge(String name, String help, LongSupplier value) {
+        return register(new Gauge(name, help, value), Gauge.class);
+    }
+
+    public Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help), Histogram.class);
+    }
+
+    private <M extends Metric> M register(M metric, Class<M> type) {
+        Metric existing = metrics.putIfAbsent(metric.getName(), metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException(metric.getName() + " is already registered as " + existing.getClass().getSimpleName());
+        }
+        return type.cast(existing);
+    }
+
+    public Metric get(String name) {
+        return metrics.get(name);
+    }
+
+    // sorted by name
+    public List<Metric> getMetrics() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    // the text format of the scrape endpoint
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics.values()) {
+            metric.writeText(out);
+        }
+        return out.toString();
+    }
+}
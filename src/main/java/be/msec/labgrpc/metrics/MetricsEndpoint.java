@@ -0,0 +1,55 @@
+package be.msec.labgrpc.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// serves the metrics as text on http://localhost:<port>/metrics, only reachable from this machine
+public class MetricsEndpoint {
+
+    private static final Logger logger = Logger.getLogger(MetricsEndpoint.class.getName());
+
+    private final MetricRegistry registry;
+    private final HttpServer server;
+
+    public MetricsEndpoint(MetricRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+    }
+
+    // -Dchat.metrics.port=9100, null when no port is configured
+    public static MetricsEndpoint fromSystemProperties(MetricRegistry registry) throws IOException {
+        int port = Integer.getInteger("chat.metrics.port", 0);
+        return port > 0 ? new MetricsEndpoint(registry, port) : null;
+    }
+
+    public void start() {
+        server.start();
+        logger.log(Level.INFO, "Metrics on http://localhost:" + getPort() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = registry.toText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
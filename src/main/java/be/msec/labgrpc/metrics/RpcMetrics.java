@@ -0,0 +1,166 @@
+package be.msec.labgrpc.metrics;
+
+import be.msec.labgrpc.PreEncoded;
+import com.google.protobuf.MessageLite;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// per method statistics of gRPC calls, filled in by ServerMetricsInterceptor and ClientMetricsInterceptor
+// metric names are rpc_<side>_<service>_<method>_..., e.g. rpc_server_ChatService_sendBroadcastMsg_latency
+// latency is only recorded for unary calls, a stream lasts as long as the user stays
+public class RpcMetrics {
+
+    private static final Logger logger = Logger.getLogger(RpcMetrics.class.getName());
+    // slow calls that are kept, older ones are dropped
+    private static final int SLOW_CALL_CAPACITY = 64;
+
+    private final MetricRegistry registry;
+    private final String side;
+    // 0 = slow calls are not sampled
+    private final long slowCallNanos;
+    private final ConcurrentMap<String, MethodStats> methods;
+    // newest last (guarded by itself)
+    private final Deque<SlowCall> slowCalls;
+
+    // side is "server" or "client"
+    public RpcMetrics(MetricRegistry registry, String side, long slowCallMillis) {
+        this.registry = registry;
+        this.side = side;
+        this.slowCallNanos = slowCallMillis * 1000000;
+        this.methods = new ConcurrentHashMap<>();
+        this.slowCalls = new ArrayDeque<>();
+    }
+
+    // -Dchat.rpc.slowCallMillis=100 keeps unary calls that take longer, with the size of their request
+    public static RpcMetrics fromSystemProperties(MetricRegistry registry, String side) {
+        return new RpcMetrics(registry, side, Long.getLong("chat.rpc.slowCallMillis", 0));
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    // begins the statistics of one call, every call is ended exactly once
+    public Call start(MethodDescriptor<?, ?> method) {
+        MethodStats stats = methods.computeIfAbsent(method.getFullMethodName(), name -> new MethodStats(method));
+        return new Call(stats);
+    }
+
+    // the slowest calls of late, oldest first
+    public List<SlowCall> getSlowCalls() {
+        synchronized (slowCalls) {
+            return new ArrayList<>(slowCalls);
+        }
+    }
+
+    private void sample(SlowCall call) {
+        synchronized (slowCalls) {
+            if (slowCalls.size() == SLOW_CALL_CAPACITY) {
+                slowCalls.pollFirst();
+            }
+            slowCalls.addLast(call);
+        }
+        logger.log(Level.WARNING, "Slow " + side + " call " + call);
+    }
+
+    private static long sizeOf(Object message) {
+        // the size is cached in the message, the marshaller uses the same value
+        if (message instanceof PreEncoded) {
+            return ((PreEncoded<?>) message).getSerializedSize();
+        }
+        return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+
+    /* ----------------------------- METHOD ----------------------------- */
+    private class MethodStats {
+        private final String method;
+        private final String prefix;
+        private final boolean unary;
+        private final AtomicLong inFlight;
+        private final Histogram latency;
+        private final Counter requests;
+        private final Counter requestBytes;
+        private final Counter responses;
+        private final Counter responseBytes;
+        private final ConcurrentMap<Status.Code, Counter> codes;
+
+        MethodStats(MethodDescriptor<?, ?> descriptor) {
+            String fullName = descriptor.getFullMethodName();
+            String service = MethodDescriptor.extractFullServiceName(fullName);
+            method = fullName;
+            prefix = "rpc_" + side + "_" + service.substring(service.lastIndexOf('.') + 1)
+                    + "_" + fullName.substring(fullName.indexOf('/') + 1);
+            unary = descriptor.getType() == MethodDescriptor.MethodType.UNARY;
+            inFlight = new AtomicLong();
+            registry.gauge(prefix + "_in_flight", "calls of " + fullName + " that are running", inFlight::get);
+            latency = unary ? registry.histogram(prefix + "_latency", "duration of " + fullName) : null;
+            requests = registry.counter(prefix + "_requests_total", "request messages of " + fullName);
+            requestBytes = registry.counter(prefix + "_request_bytes_total", "serialized size of the requests of " + fullName);
+            responses = registry.counter(prefix + "_responses_total", "response messages of " + fullName);
+            responseBytes = registry.counter(prefix + "_response_bytes_total", "serialized size of the responses of " + fullName);
+            codes = new ConcurrentHashMap<>();
+        }
+
+        Counter code(Status.Code code) {
+            return codes.computeIfAbsent(code, c -> registry.counter(prefix + "_" + c.name() + "_total",
+                    "calls of " + method + " that ended with " + c.name()));
+        }
+    }
+
+    /* ----------------------------- CALL ----------------------------- */
+    public class Call {
+        private final MethodStats stats;
+        private final long start;
+        private final AtomicBoolean ended;
+        // kept for the slow call sample, -1 until the first request
+        private volatile long firstRequestBytes = -1;
+
+        private Call(MethodStats stats) {
+            this.stats = stats;
+            this.start = System.nanoTime();
+            this.ended = new AtomicBoolean();
+            stats.inFlight.incrementAndGet();
+        }
+
+        public void request(Object message) {
+            long size = sizeOf(message);
+            if (firstRequestBytes < 0) {
+                firstRequestBytes = size;
+            }
+            stats.requests.inc();
+            stats.requestBytes.add(size);
+        }
+
+        public void response(Object message) {
+            stats.responses.inc();
+            stats.responseBytes.add(sizeOf(message));
+        }
+
+        public void end(Status status) {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            long duration = System.nanoTime() - start;
+            stats.inFlight.decrementAndGet();
+            stats.code(status.getCode()).inc();
+            if (stats.unary) {
+                stats.latency.record(duration);
+                if (slowCallNanos > 0 && duration >= slowCallNanos) {
+                    sample(new SlowCall(stats.method, status.getCode().name(), duration,
+                            System.currentTimeMillis(), Math.max(0, firstRequestBytes)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package be.msec.labgrpc.metrics;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+// records every call of the services it is put in front of, see ServerInterceptors.intercept
+public class ServerMetricsInterceptor implements ServerInterceptor {
+
+    private final RpcMetrics metrics;
+
+    public ServerMetricsInterceptor(RpcMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        RpcMetrics.Call stats = metrics.start(call.getMethodDescriptor());
+        ServerCall<ReqT, RespT> recorded = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                stats.response(message);
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                stats.end(status);
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(recorded, headers);
+        } catch (RuntimeException e) {
+            stats.end(Status.fromThrowable(e));
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                stats.request(message);
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                // the call ends without close when the client cancels it or goes away
+                stats.end(Status.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+}
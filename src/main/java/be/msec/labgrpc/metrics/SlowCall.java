@@ -0,0 +1,47 @@
+package be.msec.labgrpc.metrics;
+
+// a call that took longer than the slow call threshold, with the size of its first request
+// never the request itself, slow calls are served without authentication and requests carry private messages
+public class SlowCall {
+
+    private final String method;
+    private final String code;
+    private final long durationNanos;
+    private final long timestamp;
+    private final long requestBytes;
+
+    public SlowCall(String method, String code, long durationNanos, long timestamp, long requestBytes) {
+        this.method = method;
+        this.code = code;
+        this.durationNanos = durationNanos;
+        this.timestamp = timestamp;
+        this.requestBytes = requestBytes;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    // milliseconds since the epoch, when the call ended
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // serialized size of the first request, 0 if there was none
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + code + " in " + durationNanos / 1000000 + "ms, request of " + requestBytes + " bytes";
+    }
+}
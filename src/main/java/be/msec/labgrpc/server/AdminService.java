@@ -0,0 +1,97 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.admin.*;
+import be.msec.labgrpc.metrics.Counter;
+import be.msec.labgrpc.metrics.Gauge;
+import be.msec.labgrpc.metrics.Histogram;
+import be.msec.labgrpc.metrics.Metric;
+import be.msec.labgrpc.metrics.MetricRegistry;
+import be.msec.labgrpc.metrics.RpcMetrics;
+import be.msec.labgrpc.metrics.SlowCall;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// the metrics of the server over gRPC, next to the chat service
+public class AdminService extends AdminServiceGrpc.AdminServiceImplBase {
+
+    private final MetricRegistry registry;
+    private final RpcMetrics rpcMetrics;
+    private final MessageDispatcher dispatcher;
+    private final RoomManager rooms;
+
+    public AdminService(RpcMetrics rpcMetrics, MessageDispatcher dispatcher, RoomManager rooms) {
+        this.registry = rpcMetrics.getRegistry();
+        this.rpcMetrics = rpcMetrics;
+        this.dispatcher = dispatcher;
+        this.rooms = rooms;
+    }
+
+    @Override
+    public void getMetrics(MetricsRequest request, StreamObserver<MetricsSnapshot> responseObserver) {
+        MetricsSnapshot.Builder snapshot = MetricsSnapshot.newBuilder().setTimestamp(System.currentTimeMillis());
+        for (Metric metric : registry.getMetrics()) {
+            if (metric.getName().startsWith(request.getPrefix())) {
+                snapshot.addMetrics(toMetricValue(metric));
+            }
+        }
+        responseObserver.onNext(snapshot.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getSlowCalls(MetricsRequest request, StreamObserver<SlowCallList> responseObserver) {
+        SlowCallList.Builder list = SlowCallList.newBuilder();
+        for (SlowCall call : rpcMetrics.getSlowCalls()) {
+            if (call.getMethod().startsWith(request.getPrefix())) {
+                list.addCalls(SlowCallSample.newBuilder()
+                        .setMethod(call.getMethod())
+                        .setCode(call.getCode())
+                        .setDurationNanos(call.getDurationNanos())
+                        .setTimestamp(call.getTimestamp())
+                        .setRequestBytes(call.getRequestBytes()));
+            }
+        }
+        responseObserver.onNext(list.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getSubscriberLags(MetricsRequest request, StreamObserver<SubscriberLagList> responseObserver) {
+        List<LagTracker> lags = new ArrayList<>(dispatcher.getLags());
+        lags.addAll(rooms.getLags());
+        SubscriberLagList.Builder list = SubscriberLagList.newBuilder();
+        for (LagTracker lag : lags) {
+            if (lag.getName().startsWith(request.getPrefix())) {
+                list.addSubscribers(SubscriberLag.newBuilder()
+                        .setName(lag.getName())
+                        .setLag(lag.getLag())
+                        .setSkipped(lag.getSkipped())
+                        .setLastSequence(lag.getLastSequence()));
+            }
+        }
+        responseObserver.onNext(list.build());
+        responseObserver.onCompleted();
+    }
+
+    private static MetricValue toMetricValue(Metric metric) {
+        MetricValue.Builder value = MetricValue.newBuilder().setName(metric.getName()).setHelp(metric.getHelp());
+        if (metric instanceof Counter) {
+            value.setKind(MetricValue.Kind.COUNTER).setValue(((Counter) metric).get());
+        } else if (metric instanceof Gauge) {
+            value.setKind(MetricValue.Kind.GAUGE).setValue(((Gauge) metric).get());
+        } else if (metric instanceof Histogram) {
+            Histogram histogram = (Histogram) metric;
+            value.setKind(MetricValue.Kind.HISTOGRAM).setLatency(LatencySummary.newBuilder()
+                    .setCount(histogram.getCount())
+                    .setSumNanos(histogram.getSum())
+                    .setMaxNanos(histogram.getMax())
+                    .setP50Nanos(histogram.getPercentile(0.5))
+                    .setP90Nanos(histogram.getPercentile(0.9))
+                    .setP99Nanos(histogram.getPercentile(0.99))
+                    .setP999Nanos(histogram.getPercentile(0.999)));
+        }
+        return value.build();
+    }
+}
@@ -0,0 +1,89 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.metrics.Counter;
+import be.msec.labgrpc.metrics.Histogram;
+import be.msec.labgrpc.metrics.MetricRegistry;
+
+// the metrics the chat code updates itself, the gauges are registered by ChatServer
+// delivery latency runs from accepting a message to the onNext of a subscriber, once per subscriber
+public class ChatMetrics {
+
+    private final MetricRegistry registry;
+    private final Counter connects;
+    private final Counter disconnects;
+    private final Counter broadcasts;
+    private final Counter privateMessages;
+    private final Counter roomMessages;
+    private final Counter skipped;
+    private final Counter lagDisconnects;
+    private final Histogram broadcastDelivery;
+    private final Histogram privateDelivery;
+
+    public ChatMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        connects = registry.counter("chat_connects_total", "users that connected");
+        disconnects = registry.counter("chat_disconnects_total", "users that disconnected");
+        broadcasts = registry.counter("chat_broadcasts_total", "broadcast messages sent on this server");
+        privateMessages = registry.counter("chat_private_messages_total", "private messages sent on this server");
+        roomMessages = registry.counter("chat_room_messages_total", "room messages sent on this server");
+        skipped = registry.counter("chat_subscriber_skipped_total", "messages subscribers did not receive because they fell behind");
+        lagDisconnects = registry.counter("chat_subscriber_lag_disconnects_total", "streams failed because their subscriber fell too far behind");
+        broadcastDelivery = registry.histogram("chat_broadcast_delivery", "time from accepting a broadcast to writing it to a subscriber");
+        privateDelivery = registry.histogram("chat_private_delivery", "time from accepting a private message to writing it to a subscriber");
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    public void connected() {
+        connects.inc();
+    }
+
+    public void disconnected() {
+        disconnects.inc();
+    }
+
+    public void accepted(Message msg) {
+        switch (msg.getType()) {
+            case BROADCAST:
+                broadcasts.inc();
+                break;
+            case PRIVATE:
+                privateMessages.inc();
+                break;
+            case ROOM:
+                roomMessages.inc();
+                break;
+        }
+    }
+
+    // the message was just written to a subscriber, messages from the journal or from other servers are not timed
+    public void delivered(Message msg) {
+        long accepted = msg.getAcceptedNanos();
+        if (accepted == 0) {
+            return;
+        }
+        if (msg.getType() == MessageType.BROADCAST) {
+            broadcastDelivery.recordSince(accepted);
+        } else if (msg.getType() == MessageType.PRIVATE) {
+            privateDelivery.recordSince(accepted);
+        }
+    }
+
+    public void skipped(long count) {
+        skipped.add(count);
+    }
+
+    public void lagDisconnect() {
+        lagDisconnects.inc();
+    }
+
+    public Histogram getBroadcastDelivery() {
+        return broadcastDelivery;
+    }
+
+    public Histogram getPrivateDelivery() {
+        return privateDelivery;
+    }
+}
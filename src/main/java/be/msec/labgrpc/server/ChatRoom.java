@@ -0,0 +1,185 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.ChatEnvelope;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// a named room with its own members, message log, sequence numbers and subscribers
+// sending to a room only locks that room and only wakes up the streams subscribed to it,
+// so rooms never wait for each other, and a member that does not read is handled by the overflow policy
+public class ChatRoom {
+
+    private static final int READ_BATCH = 32;
+
+    private final String name;
+    private final MessageLog log;
+    private final OverflowPolicy overflow;
+    private final ChatMetrics metrics;
+    private final Set<String> members;
+    private final Set<Subscriber<?>> subscribers;
+    private long lastSequence;
+
+    public ChatRoom(String name, RetentionPolicy retention, OverflowPolicy overflow, ChatMetrics metrics) {
+        this.name = name;
+        this.log = new MessageLog(retention);
+        this.overflow = overflow;
+        this.metrics = metrics;
+        this.members = ConcurrentHashMap.newKeySet();
+        this.subscribers = ConcurrentHashMap.newKeySet();
+    }
+
+    /* ----------------------------- MEMBERS ----------------------------- */
+    // returns false if the user already was a member
+    public boolean join(String userName) {
+        return members.add(userName);
+    }
+
+    // returns false if the user was not a member, the streams of the user are closed
+    public boolean leave(String userName) {
+        if (!members.remove(userName)) {
+            return false;
+        }
+        for (Subscriber<?> subscriber : subscribers) {
+            if (subscriber.userName.equals(userName)) {
+                subscriber.stream.complete();
+            }
+        }
+        return true;
+    }
+
+    public boolean hasMembers() {
+        return !members.isEmpty();
+    }
+
+    public boolean isMember(String userName) {
+        return members.contains(userName);
+    }
+
+    public List<String> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    /* ----------------------------- MESSAGES ----------------------------- */
+    // give the message the next sequence number of this room and wake up the subscribers of the room
+    public long send(Message message) {
+        long sequence;
+        synchronized (this) {
+            sequence = ++lastSequence;
+            message.setSequence(sequence);
+            log.append(message);
+        }
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.stream.drain();
+        }
+        return sequence;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    // the newest messages (at most limit) before the given sequence number, oldest first
+    public List<Message> readBefore(long sequence, int limit) {
+        return log.readBefore(sequence, limit, message -> true);
+    }
+
+    public int evictExpired(long now) {
+        return log.evictExpired(now);
+    }
+
+    /* ----------------------------- SUBSCRIBE ----------------------------- */
+    // the subscriber receives the messages after lastSequence that are still in the log, the evicted ones
+    // are reported in a MISSED marker, with a negative lastSequence only the messages sent from now on
+    public <T> void subscribe(String userName, OutboundStream<T> stream, Function<Message, T> encoder, long lastSequence) {
+        long position;
+        long evictedSequence;
+        // on the lock of the log, so an eviction in between is neither lost nor counted twice by the cursor
+        synchronized (log) {
+            position = lastSequence < 0 ? log.getTail() : log.positionAfter(lastSequence);
+            evictedSequence = log.getEvictedSequence();
+        }
+        Subscriber<T> subscriber = new Subscriber<>(userName, stream, encoder, position);
+        if (lastSequence >= 0) {
+            subscriber.lag.gap(evictedSequence - lastSequence, evictedSequence);
+        }
+        stream.onClose(() -> {
+            subscribers.remove(subscriber);
+            stream.removeSource(subscriber);
+        });
+        subscribers.add(subscriber);
+        stream.addSource(subscriber);
+        // a leave that ran after the caller checked the membership did not see this stream
+        if (!members.contains(userName)) {
+            stream.fail(Status.NOT_FOUND.withDescription(userName + " is not in room " + name));
+        }
+    }
+
+    public void subscribe(String userName, OutboundStream<ChatEnvelope> stream, long lastSequence) {
+        subscribe(userName, stream, Message::toEnvelope, lastSequence);
+    }
+
+    public void close() {
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.stream.complete();
+        }
+        subscribers.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public List<LagTracker> getLags() {
+        List<LagTracker> lags = new ArrayList<>();
+        for (Subscriber<?> subscriber : subscribers) {
+            lags.add(subscriber.lag);
+        }
+        return lags;
+    }
+
+    /* ----------------------------- SUBSCRIBER ----------------------------- */
+    private class Subscriber<T> implements OutboundStream.Source {
+        private final String userName;
+        private final OutboundStream<T> stream;
+        private final Function<Message, T> encoder;
+        private final LogCursor cursor;
+        private final LagTracker lag;
+
+        Subscriber(String userName, OutboundStream<T> stream, Function<Message, T> encoder, long position) {
+            this.userName = userName;
+            this.stream = stream;
+            this.encoder = encoder;
+            this.cursor = new LogCursor(log, position, READ_BATCH);
+            this.lag = new LagTracker(userName + " room " + name, overflow, metrics);
+        }
+
+        @Override
+        public void deliver() {
+            while (stream.isReady()) {
+                Message message = cursor.peek();
+                if (message == null) {
+                    lag.reportMissed(stream, encoder);
+                    break;
+                }
+                lag.overwritten(cursor.takeSkipped());
+                if (!lag.reportMissed(stream, encoder, message)) {
+                    break;
+                }
+                cursor.advance();
+                stream.write(encoder.apply(message));
+                lag.written(message);
+            }
+            lag.overwritten(cursor.takeSkipped());
+            lag.check(stream, cursor);
+        }
+    }
+}
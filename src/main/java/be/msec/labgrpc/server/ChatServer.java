@@ -4,13 +4,27 @@ package be.msec.labgrpc.server;
 import be.msec.labgrpc.*;
 import be.msec.labgrpc.exceptions.DuplicateUsernameException;
 import be.msec.labgrpc.exceptions.UserNotFoundException;
+import be.msec.labgrpc.metrics.MetricRegistry;
+import be.msec.labgrpc.metrics.MetricsEndpoint;
+import be.msec.labgrpc.metrics.RpcMetrics;
+import be.msec.labgrpc.metrics.ServerMetricsInterceptor;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,35 +35,103 @@ public class ChatServer {
     public static final String MESSAGE_TYPE_REGEX = ": ";
 
     private static final Logger LOGGER = Logger.getLogger(ChatServer.class.getName());
-    private static final Object MSG_MUTEX = new Object();
-    private static final Object NEW_USER_MUTEX = new Object();
-    private static final Object LEAVE_USER_MUTEX = new Object();
+    public static final int DEFAULT_PORT = 1000;
 
 
     private final int portNumber;
-    private static UserManager userManager;
+    private final UserManager userManager;
+    private final MessageDispatcher dispatcher;
+    private final PresenceTracker presence;
+    private final RoomManager rooms;
+    private final ChatMetrics metrics;
+    private final OverflowPolicy overflow;
+    // large responses are gzipped, small live messages are not
+    private final CompressionPolicy compression;
+    // null when this server runs on its own
+    private final ClusterNode cluster;
     private final Server server;
-    private static boolean isRunning;
+    private final ScheduledExecutorService maintenance;
+    // null when no metrics port is configured
+    private MetricsEndpoint metricsEndpoint;
 
     public ChatServer(int portNumber) {
-        this(ServerBuilder.forPort(portNumber), portNumber);
+        this(ServerBuilder.forPort(portNumber), portNumber, ClusterConfig.fromSystemProperties(portNumber));
     }
 
     public ChatServer(ServerBuilder<?> serverBuilder, int portNumber) {
+        this(serverBuilder, portNumber, null);
+    }
+
+    public ChatServer(ServerBuilder<?> serverBuilder, int portNumber, @Nullable ClusterConfig clusterConfig) {
         this.portNumber = portNumber;
-        if (userManager == null) {
-            userManager = new UserManager();
+        userManager = new UserManager();
+        presence = new PresenceTracker(userManager::isOnline);
+        metrics = new ChatMetrics(new MetricRegistry());
+        overflow = OverflowPolicy.fromSystemProperties();
+        compression = CompressionPolicy.fromSystemProperties();
+        dispatcher = new MessageDispatcher(userManager, metrics, overflow);
+        rooms = new RoomManager(RetentionPolicy.roomFromSystemProperties(), overflow, metrics);
+        registerGauges(metrics.getRegistry());
+        // every call of every service is timed and counted per method
+        RpcMetrics rpcMetrics = RpcMetrics.fromSystemProperties(metrics.getRegistry(), "server");
+        ServerInterceptor rpcInterceptor = new ServerMetricsInterceptor(rpcMetrics);
+        // the message streams write the bytes each message was serialized to once, whatever the number of subscribers
+        serverBuilder.addService(ServerInterceptors.intercept(PreEncoded.responses(new ChatService().bindService(),
+                "syncMessages", "resumeMessages", "syncRoom", "chatSession"), rpcInterceptor));
+        serverBuilder.addService(ServerInterceptors.intercept(new AdminService(rpcMetrics, dispatcher, rooms), rpcInterceptor));
+        if (clusterConfig != null) {
+            cluster = new ClusterNode(clusterConfig, userManager, presence, dispatcher);
+            serverBuilder.addService(ServerInterceptors.intercept(cluster.getService(), rpcInterceptor));
+        } else {
+            cluster = null;
         }
-        server = serverBuilder.addService(new ChatService()).build();
+        server = serverBuilder.build();
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void registerGauges(MetricRegistry registry) {
+        registry.gauge("chat_online_users", "users connected to this server", () -> userManager.getOnlineUsers().size());
+        registry.gauge("chat_subscribers", "open message streams", dispatcher::getSubscriberCount);
+        registry.gauge("chat_subscriber_max_lag", "messages the furthest behind message stream did not receive yet", dispatcher::getMaxLag);
+        registry.gauge("chat_history_messages", "public messages kept in memory", userManager::getHistorySize);
+        registry.gauge("chat_history_bytes", "estimated heap size of the public history", userManager::getHistoryFootprint);
+        registry.gauge("chat_last_sequence", "sequence number of the last stored message", userManager::getLastSequence);
+        registry.gauge("chat_rooms", "rooms with members", rooms::getRoomCount);
     }
 
     public void start() throws IOException {
+        MessageJournal journal = MessageJournal.fromSystemProperties();
+        if (journal != null) {
+            int replayed = userManager.recover(journal);
+            info("Replayed " + replayed + " messages from the journal");
+        }
+        // before the first call, a user that connects right away has its name claimed across the cluster
+        if (cluster != null) {
+            cluster.start();
+        }
         server.start();
-        isRunning = true;
         info("Server started, listening on " + portNumber);
+        metricsEndpoint = MetricsEndpoint.fromSystemProperties(metrics.getRegistry());
+        if (metricsEndpoint != null) {
+            metricsEndpoint.start();
+        }
+        RetentionPolicy retention = userManager.getHistory().getRetention();
+        info("History " + retention);
+        info("Slow subscribers: " + overflow);
+        info("Compression: " + compression);
+        if (retention.hasMaxAge()) {
+            maintenance.scheduleWithFixedDelay(userManager::applyRetention, 1, 1, TimeUnit.SECONDS);
+            maintenance.scheduleWithFixedDelay(rooms::applyRetention, 1, 1, TimeUnit.SECONDS);
+        }
+        // mailboxes of users that left a while ago, the first pass only notes who is offline
+        maintenance.scheduleWithFixedDelay(() -> userManager.evictIdleMailboxes(dispatcher::hasSubscribers),
+                1, 1, TimeUnit.MINUTES);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             LOGGER.log(Level.SEVERE, "gRPC server shutting down (JVM is shutting down)");
-            isRunning = false;
             ChatServer.this.stop();
             LOGGER.log(Level.SEVERE, "gRPC server is shutdown");
         }));
@@ -57,7 +139,18 @@ public class ChatServer {
 
     public void stop() {
         if (server != null) {
+            dispatcher.close();
+            presence.close();
+            rooms.close();
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            maintenance.shutdownNow();
             server.shutdown();
+            userManager.closeJournal();
         }
     }
 
@@ -67,31 +160,45 @@ public class ChatServer {
         }
     }
 
+    public MetricRegistry getMetrics() {
+        return metrics.getRegistry();
+    }
+
     private static void info(String msg, @Nullable Object... params) {
         LOGGER.log(Level.INFO, msg, params);
     }
 
+    // -Dchat.port=1000, a cluster node also needs -Dchat.cluster.nodes (see ClusterConfig)
     public static void main(String[] args) throws IOException, InterruptedException {
-        ChatServer server = new ChatServer(1000);
+        ChatServer server = new ChatServer(Integer.getInteger("chat.port", DEFAULT_PORT));
         server.start();
         server.blockUntilShutdown();
     }
 
-    private static class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
+    private class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
         /*  -------------------------------- CONNECT/DISCONNECT -------------------------------- */
         @Override
         public void connectUser(UserInfo userInfo, StreamObserver<ConnectMessage> responseObserver) {
             try {
                 LOGGER.log(Level.INFO, userInfo.getName() + " is connecting to server.");
-                userManager.connectUser(userInfo.getName(), NEW_USER_MUTEX); //TODO user mutex
+                userManager.connectUser(userInfo.getName());
+                metrics.connected();
+                presence.userChanged(userInfo.getName());
 
-                responseObserver.onNext(ConnectMessage.newBuilder().setUsername(userInfo.getName()).setIsConnected(true).build());
+                responseObserver.onNext(ConnectMessage.newBuilder()
+                        .setUsername(userInfo.getName())
+                        .setIsConnected(true)
+                        .setLastSequence(userManager.getLastSequence()).build());
                 responseObserver.onCompleted();
                 LOGGER.log(Level.INFO, userInfo.getName() + " is connected to server.");
             } catch (DuplicateUsernameException e) {
                 responseObserver.onNext(ConnectMessage.newBuilder().setIsConnected(false).build());
                 LOGGER.log(Level.WARNING, userInfo.getName() + " failed to connect to server.");
                 responseObserver.onCompleted();
+            } catch (StatusRuntimeException e) {
+                // in a cluster, the node that checks the name could not be reached
+                LOGGER.log(Level.WARNING, userInfo.getName() + " could not be checked: " + e.getStatus());
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Could not check the username").asRuntimeException());
             }
         }
 
@@ -99,7 +206,10 @@ public class ChatServer {
         public void disconnectUser(UserInfo userInfo, StreamObserver<DisconnectMessage> responseObserver) {
             try {
                 LOGGER.log(Level.INFO, userInfo.getName() + " is disconnecting from server.");
-                userManager.disconnectUser(userInfo.getName(), LEAVE_USER_MUTEX);
+                userManager.disconnectUser(userInfo.getName());
+                metrics.disconnected();
+                rooms.leaveAll(userInfo.getName());
+                presence.userChanged(userInfo.getName());
 
                 responseObserver.onNext(DisconnectMessage.newBuilder().setUsername(userInfo.getName()).setIsDisconnected(true).build());
                 responseObserver.onCompleted();
@@ -116,100 +226,223 @@ public class ChatServer {
         // put a message in the message list, that is accessible by all users, and notify the sync method
         @Override
         public void sendBroadcastMsg(MessageText mt, StreamObserver<Empty> responseObserver) {
-            synchronized (MSG_MUTEX) {
-                try {
-                    //GATHERING INFO
-                    User sender = userManager.findUserByName(mt.getSender());
-                    //MESSAGE
-                    Message msg = new Message(sender, MessageType.BROADCAST, mt.getText());
-                    userManager.addToMessages(msg, MSG_MUTEX);
-                    LOGGER.log(Level.INFO, msg.toString());
-                    //RESPONSE OBSERVER
-                    responseObserver.onNext(Empty.newBuilder().build());
-                    responseObserver.onCompleted();
-                } catch (UserNotFoundException e) {
-                    e.printStackTrace();
-                    responseObserver.onCompleted();
-                }
+            try {
+                //GATHERING INFO
+                User sender = userManager.findUserByName(mt.getSender());
+                //MESSAGE
+                Message msg = new Message(sender, MessageType.BROADCAST, mt.getText());
+                userManager.addToMessages(msg).whenComplete((ignored, t) -> acknowledge(responseObserver, t));
+                dispatcher.dispatch(msg);
+                LOGGER.log(Level.INFO, msg.toString());
+            } catch (UserNotFoundException e) {
+                e.printStackTrace();
+                responseObserver.onCompleted();
             }
         }
 
         @Override
         public void sendPrivateMsg(PrivateMessageText privateMessageText, StreamObserver<Empty> responseObserver) {
-            synchronized (MSG_MUTEX) {
+            try {
+                //GATHERING INFO
+                MessageText mt = privateMessageText.getMessageText();
+                User sender = userManager.findUserByName(mt.getSender());
+                User uReceiver = userManager.findRecipient(privateMessageText.getReceiver());
+                String sReceiver = uReceiver.toString();
+                //MESSAGE
+                Message msg = new Message(sender, MessageType.PRIVATE, mt.getText(), sReceiver);
+                userManager.addToMessages(msg).whenComplete((ignored, t) -> acknowledge(responseObserver, t));
+                dispatcher.dispatch(msg);
+                LOGGER.log(Level.INFO, msg.toString());
+            } catch (UserNotFoundException e) {
+                e.printStackTrace();
+                responseObserver.onCompleted();
+            }
+        }
+
+        // store all valid messages of the batch at once, the invalid ones are rejected in their ack
+        @Override
+        public void sendBatch(MessageBatch batch, StreamObserver<BatchAck> responseObserver) {
+            List<Message> accepted = new ArrayList<>();
+            Message[] messages = new Message[batch.getMessagesCount()];
+            String[] errors = new String[messages.length];
+            for (int i = 0; i < messages.length; i++) {
                 try {
-                    //GATHERING INFO
-                    MessageText mt = privateMessageText.getMessageText();
-                    User sender = userManager.findUserByName(mt.getSender());
-                    User uReceiver = userManager.findUserByName(privateMessageText.getReceiver());
-                    String sReceiver = uReceiver.toString();
-                    //MESSAGE
-                    Message msg = new Message(sender, MessageType.PRIVATE, mt.getText(), sReceiver);
-                    userManager.addToMessages(msg, MSG_MUTEX);
-                    LOGGER.log(Level.INFO, msg.toString());
-
-                    //RESPONSE OBSERVER
-                    responseObserver.onNext(Empty.newBuilder().build());
-                    responseObserver.onCompleted();
+                    messages[i] = userManager.createMessage(batch.getMessages(i));
+                    accepted.add(messages[i]);
                 } catch (UserNotFoundException e) {
-                    e.printStackTrace();
-                    responseObserver.onCompleted();
+                    errors[i] = "Unknown user: " + e.getMessage();
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+            CompletableFuture<Void> stored = userManager.addAllToMessages(accepted);
+            dispatcher.dispatchAll(accepted);
+            info("Stored a batch of " + accepted.size() + " messages");
+            stored.whenComplete((ignored, t) -> {
+                if (t != null) {
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription("Could not store messages").withCause(t).asRuntimeException());
+                    return;
+                }
+                BatchAck.Builder ack = BatchAck.newBuilder();
+                for (int i = 0; i < messages.length; i++) {
+                    if (errors[i] != null) {
+                        ack.addAcks(MessageAck.newBuilder().setAccepted(false).setError(errors[i]));
+                    } else {
+                        ack.addAcks(MessageAck.newBuilder().setAccepted(true).setSequence(messages[i].getSequence()));
+                    }
                 }
+                responseObserver.onNext(ack.build());
+                responseObserver.onCompleted();
+            });
+        }
+
+        // answer the sender once the message is stored (and written to disk when the journal is enabled)
+        private void acknowledge(StreamObserver<Empty> responseObserver, Throwable t) {
+            if (t != null) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Could not store message").withCause(t).asRuntimeException());
+                return;
             }
+            //RESPONSE OBSERVER
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
         }
 
         /*  -------------------------------- GETTING MESSAGES -------------------------------- */
         // synchronize message list of all users, so that they receive the latest message
-        // mutex will wait until a message is added to the list -- consume
+        // the stream is registered at the dispatcher, which writes to it whenever a message for the user arrives
         @Override
         public void syncMessages(UserInfo userInfo, StreamObserver<MessageText> responseObserver) {
-            while (isRunning) {
-                synchronized (MSG_MUTEX) {
-                    try {
-                        MSG_MUTEX.wait();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        responseObserver.onCompleted();
-                    }
-                }
-                // check if their is a message that belongs to the user
-                Message msg = userManager.getLastMessage(userInfo.getName());
-
-                if (msg != null) {
-                    info("Synchronize... : " + msg);
+            info("Synchronize... : " + userInfo.getName());
+            dispatcher.subscribe(userInfo.getName(), new OutboundStream<>(PreEncoded.observer(responseObserver), compression),
+                    Message::encodedText, -1);
+        }
 
-                    responseObserver.onNext(
-                            MessageText
-                                    .newBuilder()
-                                    .setSender(msg.getSender().getName())
-                                    .setText(msg.getContent()).build());
+        // same as syncMessages but with typed envelopes, and first replays the messages the client missed after the last one it received
+        @Override
+        public void resumeMessages(SyncRequest request, StreamObserver<ChatEnvelope> responseObserver) {
+            info("Resume... : " + request.getName() + " after " + request.getLastSequence());
+            dispatcher.subscribe(request.getName(), new OutboundStream<>(PreEncoded.observer(responseObserver), compression),
+                    Message::encodedEnvelope, request.getLastSequence());
+        }
 
+        // a page of older messages, for clients that only keep the newest lines in memory
+        @Override
+        public void fetchHistory(HistoryRequest request, StreamObserver<HistoryPage> responseObserver) {
+            HistoryPage page;
+            if (request.getConversation() == HistoryRequest.Conversation.ROOM) {
+                ChatRoom room = rooms.find(request.getRoom());
+                if (room == null || !room.isMember(request.getName())) {
+                    responseObserver.onError(Status.NOT_FOUND.withDescription(request.getName() + " is not in room " + request.getRoom()).asRuntimeException());
+                    return;
                 }
+                int limit = UserManager.pageSize(request);
+                page = UserManager.toHistoryPage(room.readBefore(request.getBefore(), limit), limit);
+            } else {
+                page = userManager.fetchHistory(request);
             }
+            // a page is many messages in one, the part of the traffic that compresses best
+            ServerCallStreamObserver<HistoryPage> call = (ServerCallStreamObserver<HistoryPage>) responseObserver;
+            compression.enable(call);
+            compression.beforeWrite(call, page);
+            responseObserver.onNext(page);
+            responseObserver.onCompleted();
         }
 
+        // legacy user list: all online users, then every user that joins
         @Override
         public void syncUserList(Empty empty, StreamObserver<UserInfo> responseObserver) {
-            List<String> onlineUsers = userManager.getOnlineUsers();
-            for (String s : onlineUsers) {
-                responseObserver.onNext(UserInfo.newBuilder().setName(s).build());
+            presence.subscribe(new OutboundStream<>((ServerCallStreamObserver<UserInfo>) responseObserver, compression), event -> {
+                List<UserInfo> users = new ArrayList<>();
+                if (event.getKind() == PresenceEvent.Kind.SNAPSHOT) {
+                    for (String s : event.getUsersList()) {
+                        users.add(UserInfo.newBuilder().setName(s).build());
+                    }
+                } else if (event.getKind() == PresenceEvent.Kind.JOINED) {
+                    users.add(UserInfo.newBuilder().setName(event.getName()).build());
+                }
+                return users;
+            });
+        }
+
+        // snapshot of the online users, then only the changes
+        @Override
+        public void syncPresence(Empty empty, StreamObserver<PresenceEvent> responseObserver) {
+            presence.subscribe(new OutboundStream<>((ServerCallStreamObserver<PresenceEvent>) responseObserver, compression));
+        }
+
+        /*  -------------------------------- ROOMS -------------------------------- */
+        // every room has its own log, sequence numbers and subscribers, so rooms do not wait for each other
+        @Override
+        public void joinRoom(RoomRequest request, StreamObserver<RoomInfo> responseObserver) {
+            ChatRoom room = userManager.isOnline(request.getName()) ? rooms.join(request.getRoom(), request.getName()) : null;
+            if (room != null) {
+                info(request.getName() + " joined room " + request.getRoom());
+                responseObserver.onNext(roomInfo(room));
+            } else {
+                responseObserver.onNext(RoomInfo.newBuilder().setRoom(request.getRoom()).setOk(false).build());
             }
+            responseObserver.onCompleted();
+        }
 
-            while (isRunning) {
-                synchronized (NEW_USER_MUTEX) {
-                    try {
-                        NEW_USER_MUTEX.wait();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        responseObserver.onCompleted();
-                    }
+        @Override
+        public void leaveRoom(RoomRequest request, StreamObserver<RoomInfo> responseObserver) {
+            ChatRoom room = rooms.leave(request.getRoom(), request.getName());
+            if (room != null) {
+                info(request.getName() + " left room " + request.getRoom());
+                responseObserver.onNext(roomInfo(room));
+            } else {
+                responseObserver.onNext(RoomInfo.newBuilder().setRoom(request.getRoom()).setOk(false).build());
+            }
+            responseObserver.onCompleted();
+        }
 
-                    onlineUsers = userManager.getOnlineUsers();
-                    for (String s : onlineUsers) {
-                        responseObserver.onNext(UserInfo.newBuilder().setName(s).build());
-                    }
+        private RoomInfo roomInfo(ChatRoom room) {
+            return RoomInfo.newBuilder()
+                    .setRoom(room.getName())
+                    .setOk(true)
+                    .addAllMembers(room.getMembers())
+                    .setLastSequence(room.getLastSequence()).build();
+        }
+
+        @Override
+        public void sendRoomMsg(RoomMessage roomMessage, StreamObserver<MessageAck> responseObserver) {
+            MessageText mt = roomMessage.getMessageText();
+            ChatRoom room = rooms.find(roomMessage.getRoom());
+            MessageAck.Builder ack = MessageAck.newBuilder();
+            if (room == null || !room.isMember(mt.getSender())) {
+                ack.setAccepted(false).setError(mt.getSender() + " is not in room " + roomMessage.getRoom());
+            } else {
+                try {
+                    User sender = userManager.findUserByName(mt.getSender());
+                    Message msg = Message.toRoom(sender, room.getName(), mt.getText());
+                    metrics.accepted(msg);
+                    ack.setAccepted(true).setSequence(room.send(msg));
+                } catch (UserNotFoundException e) {
+                    ack.setAccepted(false).setError("Unknown user: " + e.getMessage());
                 }
             }
+            responseObserver.onNext(ack.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void syncRoom(RoomSyncRequest request, StreamObserver<ChatEnvelope> responseObserver) {
+            // checked again by subscribe, once the stream can be seen by a leave
+            ChatRoom room = rooms.find(request.getRoom());
+            if (room == null || !room.isMember(request.getName())) {
+                responseObserver.onError(Status.NOT_FOUND.withDescription(request.getName() + " is not in room " + request.getRoom()).asRuntimeException());
+                return;
+            }
+            room.subscribe(request.getName(), new OutboundStream<>(PreEncoded.observer(responseObserver), compression),
+                    Message::encodedEnvelope, request.getLastSequence());
+        }
+
+        /*  -------------------------------- SESSION -------------------------------- */
+        // connect, send, receive messages and presence over one bidirectional stream
+        @Override
+        public StreamObserver<ClientFrame> chatSession(StreamObserver<ServerFrame> responseObserver) {
+            return new ChatSession(userManager, dispatcher, presence, rooms, metrics,
+                    new OutboundStream<>(PreEncoded.observer(responseObserver), compression));
         }
     }
 }
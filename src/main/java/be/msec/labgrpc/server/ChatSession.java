@@ -0,0 +1,143 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.*;
+import be.msec.labgrpc.exceptions.DuplicateUsernameException;
+import be.msec.labgrpc.exceptions.UserNotFoundException;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// server side of a chatSession stream: the first frame connects the user, after that the client sends
+// while messages, presence events and acks are written to the same outgoing stream
+// the user is disconnected when the session ends, however it ends
+public class ChatSession implements StreamObserver<ClientFrame> {
+
+    private static final Logger logger = Logger.getLogger(ChatSession.class.getName());
+
+    private final UserManager userManager;
+    private final MessageDispatcher dispatcher;
+    private final PresenceTracker presence;
+    private final RoomManager rooms;
+    private final ChatMetrics metrics;
+    private final OutboundStream<Object> stream;
+    // set once the open frame connected the user, inbound frames arrive one at a time
+    private String userName;
+
+    public ChatSession(UserManager userManager, MessageDispatcher dispatcher, PresenceTracker presence, RoomManager rooms,
+                       ChatMetrics metrics, OutboundStream<Object> stream) {
+        this.userManager = userManager;
+        this.dispatcher = dispatcher;
+        this.presence = presence;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.stream = stream;
+    }
+
+    /* ----------------------------- INBOUND ----------------------------- */
+    @Override
+    public void onNext(ClientFrame frame) {
+        switch (frame.getFrameCase()) {
+            case OPEN:
+                open(frame.getOpen());
+                break;
+            case SEND:
+                send(frame.getSend(), frame.getCorrelationId());
+                break;
+            case CLOSE:
+                end();
+                stream.complete();
+                break;
+            default:
+                logger.log(Level.WARNING, "Empty frame in session of " + userName);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // the client went away
+        end();
+    }
+
+    @Override
+    public void onCompleted() {
+        end();
+        stream.complete();
+    }
+
+    /* ----------------------------- OPEN ----------------------------- */
+    private void open(SyncRequest request) {
+        if (userName != null) {
+            logger.log(Level.WARNING, userName + " opened the session twice");
+            return;
+        }
+        String name = request.getName();
+        try {
+            userManager.connectUser(name);
+        } catch (DuplicateUsernameException | StatusRuntimeException e) {
+            // taken, or in a cluster the node that checks the name could not be reached
+            stream.enqueue(ServerFrame.newBuilder().setConnected(ConnectMessage.newBuilder().setIsConnected(false)).build());
+            stream.complete();
+            return;
+        }
+        userName = name;
+        metrics.connected();
+        presence.userChanged(name);
+        stream.enqueue(ServerFrame.newBuilder().setConnected(ConnectMessage.newBuilder()
+                .setUsername(name)
+                .setIsConnected(true)
+                .setLastSequence(userManager.getLastSequence())).build());
+        presence.subscribe(stream, event -> Collections.<Object>singletonList(ServerFrame.newBuilder().setPresence(event).build()));
+        dispatcher.subscribe(name, stream, Message::encodedFrame, request.getLastSequence());
+        logger.log(Level.INFO, name + " opened a session.");
+    }
+
+    /* ----------------------------- SEND ----------------------------- */
+    private void send(OutgoingMessage outgoing, long correlationId) {
+        if (userName == null) {
+            ack(correlationId, MessageAck.newBuilder().setAccepted(false).setError("Session is not open").build());
+            return;
+        }
+        Message msg;
+        try {
+            msg = userManager.createMessage(outgoing);
+        } catch (UserNotFoundException e) {
+            ack(correlationId, MessageAck.newBuilder().setAccepted(false).setError("Unknown user: " + e.getMessage()).build());
+            return;
+        } catch (IllegalArgumentException e) {
+            ack(correlationId, MessageAck.newBuilder().setAccepted(false).setError(e.getMessage()).build());
+            return;
+        }
+        userManager.addToMessages(msg).whenComplete((ignored, t) -> {
+            if (t != null) {
+                ack(correlationId, MessageAck.newBuilder().setAccepted(false).setError("Could not store message").build());
+            } else {
+                ack(correlationId, MessageAck.newBuilder().setAccepted(true).setSequence(msg.getSequence()).build());
+            }
+        });
+        dispatcher.dispatch(msg);
+    }
+
+    private void ack(long correlationId, MessageAck ack) {
+        stream.enqueue(ServerFrame.newBuilder().setAck(ack).setCorrelationId(correlationId).build());
+    }
+
+    /* ----------------------------- END ----------------------------- */
+    private void end() {
+        if (userName == null) {
+            return;
+        }
+        try {
+            userManager.disconnectUser(userName);
+            metrics.disconnected();
+            rooms.leaveAll(userName);
+            presence.userChanged(userName);
+            logger.log(Level.INFO, userName + " closed the session.");
+        } catch (UserNotFoundException e) {
+            logger.log(Level.WARNING, userName + " was already disconnected.");
+        }
+        userName = null;
+    }
+}
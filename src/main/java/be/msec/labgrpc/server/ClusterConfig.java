@@ -0,0 +1,95 @@
+package be.msec.labgrpc.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+// the servers of a cluster and which one of them this is
+// every node must be started with the same list of nodes, in the same order
+public class ClusterConfig {
+
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 1000;
+    public static final int DEFAULT_MAX_QUEUED = 4096;
+
+    private final List<String> nodes;
+    private final int self;
+    private final Function<String, ManagedChannel> channels;
+    // a relay stream sends a heartbeat this often, one that stays silent five times as long is dead
+    private final long heartbeatMillis;
+    // frames waiting for a peer that does not read, beyond this its relay stream is reset
+    private final int maxQueued;
+
+    public ClusterConfig(List<String> nodes, int self) {
+        this(nodes, self, address -> ManagedChannelBuilder.forTarget(address).usePlaintext(true).build());
+    }
+
+    // channels opens the channel to the node with the given address
+    public ClusterConfig(List<String> nodes, int self, Function<String, ManagedChannel> channels) {
+        this(nodes, self, channels, DEFAULT_HEARTBEAT_MILLIS, DEFAULT_MAX_QUEUED);
+    }
+
+    public ClusterConfig(List<String> nodes, int self, Function<String, ManagedChannel> channels,
+                         long heartbeatMillis, int maxQueued) {
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("Node " + self + " is not one of " + nodes);
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.self = self;
+        this.channels = channels;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxQueued = maxQueued;
+    }
+
+    // -Dchat.cluster.nodes=localhost:1000,localhost:1001 -Dchat.cluster.self=localhost:1001
+    // -Dchat.cluster.heartbeatMillis=1000 -Dchat.cluster.maxQueued=4096
+    // self defaults to localhost with the given port, null when no nodes are configured
+    public static ClusterConfig fromSystemProperties(int port) {
+        String nodes = System.getProperty("chat.cluster.nodes");
+        if (nodes == null || nodes.trim().isEmpty()) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            list.add(node.trim());
+        }
+        String self = System.getProperty("chat.cluster.self", "localhost:" + port);
+        return new ClusterConfig(list, list.indexOf(self),
+                address -> ManagedChannelBuilder.forTarget(address).usePlaintext(true).build(),
+                Long.getLong("chat.cluster.heartbeatMillis", DEFAULT_HEARTBEAT_MILLIS),
+                Integer.getInteger("chat.cluster.maxQueued", DEFAULT_MAX_QUEUED));
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public ManagedChannel openChannel(int node) {
+        return channels.apply(nodes.get(node));
+    }
+
+    // the node that decides who may use the name
+    public int homeOf(String userName) {
+        return Math.floorMod(userName.hashCode(), nodes.size());
+    }
+
+    @Override
+    public String toString() {
+        return "node " + self + " of " + nodes;
+    }
+}
@@ -0,0 +1,511 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.Empty;
+import be.msec.labgrpc.PresenceEvent;
+import be.msec.labgrpc.User;
+import be.msec.labgrpc.cluster.*;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// one server of a cluster: every server owns the users connected to it
+// a name is claimed at its home node before a user may use it, so it is online on one server at most
+// presence changes and messages of this server are relayed to the others over one ordered stream per peer,
+// a broadcast goes to every peer and a private message only to the server of the receiver
+// room messages stay on the server they were sent on
+// a relay stream starts with the members of its node and is reopened right after it broke, so a peer that
+// dropped the users of a lost stream gets them back; a stream that stays silent past its heartbeats is lost
+public class ClusterNode implements UserManager.RemoteUsers {
+
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+    private static final long CLAIM_TIMEOUT_SECONDS = 5;
+    // a relay stream without any frame for this many heartbeats is considered dead
+    private static final int MISSED_HEARTBEATS = 5;
+
+    private final ClusterConfig config;
+    private final int self;
+    private final UserManager userManager;
+    private final PresenceTracker presence;
+    private final MessageDispatcher dispatcher;
+    // names whose home is this node, with the node they are online on
+    private final ConcurrentMap<String, Integer> claims;
+    // users online on other nodes, with their node
+    private final ConcurrentMap<String, Integer> remoteUsers;
+    // by node index, null for this node
+    private final Peer[] peers;
+    // the relay stream each other node currently sends on
+    private final ConcurrentMap<Integer, Inbound> inbound;
+    // heartbeats, liveness checks and reopening broken relay streams
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed;
+
+    public ClusterNode(ClusterConfig config, UserManager userManager, PresenceTracker presence, MessageDispatcher dispatcher) {
+        this.config = config;
+        this.self = config.getSelf();
+        this.userManager = userManager;
+        this.presence = presence;
+        this.dispatcher = dispatcher;
+        this.claims = new ConcurrentHashMap<>();
+        this.remoteUsers = new ConcurrentHashMap<>();
+        this.peers = new Peer[config.getNodes().size()];
+        this.inbound = new ConcurrentHashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the channels connect lazily, names can be claimed before start
+        for (int node = 0; node < peers.length; node++) {
+            if (node != self) {
+                peers[node] = new Peer(node, config.openChannel(node));
+            }
+        }
+        userManager.setRemoteUsers(this);
+        presence.setRelay(this::announce);
+        dispatcher.setRelay(this::relay);
+    }
+
+    public BindableService getService() {
+        return new Service();
+    }
+
+    // connect to the other nodes and ask who is online there
+    public void start() {
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.open();
+                peer.pullMembers();
+            }
+        }
+        long heartbeat = config.getHeartbeatMillis();
+        timer.scheduleWithFixedDelay(this::heartbeat, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+        logger.log(Level.INFO, "Cluster " + config);
+    }
+
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.close();
+            }
+        }
+    }
+
+    // keep the outgoing streams busy and drop the incoming ones that went silent
+    private void heartbeat() {
+        RelayFrame frame = RelayFrame.newBuilder().setNode(self).build();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.heartbeat(frame);
+            }
+        }
+        long deadline = System.currentTimeMillis() - MISSED_HEARTBEATS * config.getHeartbeatMillis();
+        for (Inbound stream : inbound.values()) {
+            if (stream.lastFrame < deadline) {
+                stream.fail(Status.UNAVAILABLE.withDescription("No heartbeat from node " + stream.node));
+            }
+        }
+    }
+
+    /* ----------------------------- NAMES ----------------------------- */
+    @Override
+    public boolean claim(String userName) {
+        int home = config.homeOf(userName);
+        if (home == self) {
+            return claimAt(userName, self);
+        }
+        // waits a while for a home node that is starting, throws when it cannot be reached, the name cannot be checked then
+        return peers[home].blocking.withWaitForReady().withDeadlineAfter(CLAIM_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .claimName(NameClaim.newBuilder().setName(userName).setNode(self).build())
+                .getGranted();
+    }
+
+    @Override
+    public void release(String userName) {
+        int home = config.homeOf(userName);
+        if (home == self) {
+            claims.remove(userName, self);
+        } else {
+            peers[home].async.releaseName(NameClaim.newBuilder().setName(userName).setNode(self).build(), ignore());
+        }
+    }
+
+    @Override
+    public boolean isOnline(String userName) {
+        return remoteUsers.containsKey(userName);
+    }
+
+    private boolean claimAt(String userName, int node) {
+        Integer owner = claims.putIfAbsent(userName, node);
+        return owner == null;
+    }
+
+    /* ----------------------------- OUTGOING ----------------------------- */
+    private void announce(PresenceEvent.Kind kind, String userName) {
+        RelayFrame frame = RelayFrame.newBuilder().setNode(self)
+                .setPresence(PresenceUpdate.newBuilder().setName(userName).setJoined(kind == PresenceEvent.Kind.JOINED))
+                .build();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.send(frame);
+            }
+        }
+    }
+
+    private void relay(Message msg) {
+        if (msg.getType() == MessageType.BROADCAST) {
+            RelayFrame frame = RelayFrame.newBuilder().setNode(self).setMessage(msg.toEnvelope()).build();
+            for (Peer peer : peers) {
+                if (peer != null) {
+                    peer.send(frame);
+                }
+            }
+        } else if (msg.getType() == MessageType.PRIVATE) {
+            Integer node = remoteUsers.get(msg.getReceiverString());
+            if (node != null) {
+                peers[node].send(RelayFrame.newBuilder().setNode(self).setMessage(msg.toEnvelope()).build());
+            }
+        }
+    }
+
+    /* ----------------------------- INCOMING ----------------------------- */
+    private void remoteJoined(String userName, int node) {
+        remoteUsers.put(userName, node);
+        presence.applyRemote(PresenceEvent.Kind.JOINED, userName);
+    }
+
+    private void remoteLeft(String userName, int node) {
+        if (remoteUsers.remove(userName, node)) {
+            presence.applyRemote(PresenceEvent.Kind.LEFT, userName);
+        }
+    }
+
+    // store the message under a sequence number of this node and deliver it to the local subscribers
+    private void receive(ChatEnvelope envelope) {
+        MessageType type = envelope.getType() == ChatEnvelope.Type.PRIVATE ? MessageType.PRIVATE : MessageType.BROADCAST;
+        String receiver = envelope.getReceiver().isEmpty() ? null : envelope.getReceiver();
+        Message msg = new Message(new User(envelope.getSender()), type, envelope.getBody(), receiver,
+                new Timestamp(envelope.getTimestamp()));
+        userManager.addToMessages(msg);
+        dispatcher.dispatchRelayed(msg);
+    }
+
+    // the stream a node sends on from now on, the one it replaces is ended without dropping the users
+    // attaching, detaching and the members frame hold the lock, so a lost stream cannot undo the members of its successor
+    private synchronized void attach(int node, Inbound stream) {
+        Inbound previous = inbound.put(node, stream);
+        if (previous != null) {
+            previous.fail(Status.CANCELLED.withDescription("Replaced by a new relay stream"));
+        }
+    }
+
+    // only while it is the stream of the node
+    private synchronized void detach(int node, Inbound stream) {
+        if (inbound.remove(node, stream)) {
+            nodeLost(node);
+        }
+    }
+
+    // the first frame of a relay stream, the users of the node are exactly these from now on
+    private synchronized void membersOf(int node, NodeMembers members) {
+        Set<String> names = new HashSet<>(members.getNamesList());
+        for (Map.Entry<String, Integer> entry : remoteUsers.entrySet()) {
+            if (entry.getValue() == node && !names.contains(entry.getKey())) {
+                remoteLeft(entry.getKey(), node);
+            }
+        }
+        // the claim first, a user that sees the name online must not be able to take it here
+        for (String userName : names) {
+            restoreClaim(userName, node);
+            if (!Integer.valueOf(node).equals(remoteUsers.get(userName))) {
+                remoteJoined(userName, node);
+            }
+        }
+    }
+
+    // this node may have been restarted, or have dropped the node, and lost the claims of the names at home here
+    private void restoreClaim(String userName, int node) {
+        if (config.homeOf(userName) == self) {
+            Integer owner = claims.putIfAbsent(userName, node);
+            if (owner != null && owner != node) {
+                logger.log(Level.WARNING, userName + " is online on node " + node + " but claimed by node " + owner);
+            }
+        }
+    }
+
+    // the relay stream of the node broke, it is considered down with all its users until it reopens the stream
+    private void nodeLost(int node) {
+        if (closed) {
+            return;
+        }
+        logger.log(Level.WARNING, "Lost node " + node + " (" + config.getNodes().get(node) + ")");
+        for (Map.Entry<String, Integer> entry : remoteUsers.entrySet()) {
+            if (entry.getValue() == node) {
+                remoteLeft(entry.getKey(), node);
+            }
+        }
+        claims.values().removeIf(owner -> owner == node);
+    }
+
+    private static <T> StreamObserver<T> ignore() {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.WARNING, "Cluster call failed: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
+    /* ----------------------------- PEER ----------------------------- */
+    private class Peer {
+        private final int node;
+        private final ManagedChannel channel;
+        private final ClusterServiceGrpc.ClusterServiceBlockingStub blocking;
+        private final ClusterServiceGrpc.ClusterServiceStub async;
+        // frames written only while the relay stream is ready, the members snapshot of a new stream goes first
+        private final ArrayDeque<RelayFrame> pending;
+        // the relay stream to this peer, null while it is being reopened
+        private ClientCallStreamObserver<RelayFrame> out;
+
+        Peer(int node, ManagedChannel channel) {
+            this.node = node;
+            this.channel = channel;
+            this.blocking = ClusterServiceGrpc.newBlockingStub(channel);
+            this.async = ClusterServiceGrpc.newStub(channel);
+            this.pending = new ArrayDeque<>();
+        }
+
+        // waits for the peer to be up, the frames sent meanwhile are queued
+        synchronized void open() {
+            if (closed) {
+                return;
+            }
+            out = (ClientCallStreamObserver<RelayFrame>) async.withWaitForReady().relay(new ClientResponseObserver<RelayFrame, Empty>() {
+                private ClientCallStreamObserver<RelayFrame> stream;
+
+                @Override
+                public void beforeStart(ClientCallStreamObserver<RelayFrame> requestStream) {
+                    stream = requestStream;
+                    requestStream.setOnReadyHandler(Peer.this::drain);
+                }
+
+                @Override
+                public void onNext(Empty value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.log(Level.WARNING, "Relay to node " + node + " failed: " + t.getMessage());
+                    broken(stream);
+                }
+
+                @Override
+                public void onCompleted() {
+                    broken(stream);
+                }
+            });
+            // the users online here when the stream starts, the changes already queued follow it
+            // the registry changes before the change is announced, so replaying them after the snapshot ends in the same state
+            NodeMembers members = NodeMembers.newBuilder().setNode(self).addAllNames(userManager.getOnlineUsers()).build();
+            pending.addFirst(RelayFrame.newBuilder().setNode(self).setMembers(members).build());
+            drain();
+        }
+
+        synchronized void send(RelayFrame frame) {
+            if (closed) {
+                return;
+            }
+            if (pending.size() >= config.getMaxQueued()) {
+                // the peer does not read, it gets the members again on the next stream but misses these messages
+                logger.log(Level.WARNING, "Node " + node + " fell " + pending.size() + " frames behind, resetting its relay stream");
+                pending.clear();
+                if (out != null) {
+                    out.cancel("Too many frames not read", null);
+                }
+                return;
+            }
+            pending.add(frame);
+            drain();
+        }
+
+        // only when nothing else waits, a stream that is not ready does not need one
+        synchronized void heartbeat(RelayFrame frame) {
+            if (out != null && pending.isEmpty()) {
+                send(frame);
+            }
+        }
+
+        synchronized void drain() {
+            RelayFrame frame;
+            while (out != null && out.isReady() && (frame = pending.poll()) != null) {
+                out.onNext(frame);
+            }
+        }
+
+        // reopen the stream after a heartbeat, messages sent meanwhile wait in pending
+        private synchronized void broken(ClientCallStreamObserver<RelayFrame> stream) {
+            if (out != stream || closed) {
+                return;
+            }
+            out = null;
+            timer.schedule(this::reopen, config.getHeartbeatMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void reopen() {
+            if (out == null) {
+                open();
+            }
+        }
+
+        void pullMembers() {
+            async.withWaitForReady().members(Empty.getDefaultInstance(), new StreamObserver<NodeMembers>() {
+                @Override
+                public void onNext(NodeMembers members) {
+                    for (String userName : members.getNamesList()) {
+                        restoreClaim(userName, node);
+                        remoteJoined(userName, node);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.log(Level.WARNING, "Could not get the members of node " + node + ": " + t.getMessage());
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        synchronized void close() {
+            if (out != null) {
+                out.onCompleted();
+                out = null;
+            }
+            pending.clear();
+            channel.shutdown();
+        }
+    }
+
+    // the receiving side of the relay stream of one node
+    private class Inbound implements StreamObserver<RelayFrame> {
+        private final StreamObserver<Empty> responseObserver;
+        private int node = -1;
+        private volatile long lastFrame = System.currentTimeMillis();
+        private boolean ended;
+
+        Inbound(StreamObserver<Empty> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(RelayFrame frame) {
+            lastFrame = System.currentTimeMillis();
+            if (node < 0) {
+                node = frame.getNode();
+                attach(node, this);
+            }
+            if (frame.hasMembers()) {
+                membersOf(node, frame.getMembers());
+            } else if (frame.hasPresence()) {
+                PresenceUpdate update = frame.getPresence();
+                if (update.getJoined()) {
+                    remoteJoined(update.getName(), node);
+                } else {
+                    remoteLeft(update.getName(), node);
+                }
+            } else if (frame.hasMessage()) {
+                receive(frame.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            lost();
+        }
+
+        @Override
+        public void onCompleted() {
+            lost();
+            synchronized (this) {
+                if (!ended) {
+                    ended = true;
+                    responseObserver.onNext(Empty.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+            }
+        }
+
+        // ends the call, the sending node reopens it
+        void fail(Status status) {
+            lost();
+            synchronized (this) {
+                if (!ended) {
+                    ended = true;
+                    responseObserver.onError(status.asRuntimeException());
+                }
+            }
+        }
+
+        // a replaced stream does not take the users of the new one along
+        private void lost() {
+            if (node >= 0) {
+                detach(node, this);
+            }
+        }
+    }
+
+    /* ----------------------------- SERVICE ----------------------------- */
+    private class Service extends ClusterServiceGrpc.ClusterServiceImplBase {
+        @Override
+        public void claimName(NameClaim request, StreamObserver<ClaimResult> responseObserver) {
+            responseObserver.onNext(ClaimResult.newBuilder().setGranted(claimAt(request.getName(), request.getNode())).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void releaseName(NameClaim request, StreamObserver<ClaimResult> responseObserver) {
+            boolean released = claims.remove(request.getName(), request.getNode());
+            responseObserver.onNext(ClaimResult.newBuilder().setGranted(released).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void members(Empty request, StreamObserver<NodeMembers> responseObserver) {
+            responseObserver.onNext(NodeMembers.newBuilder().setNode(self).addAllNames(userManager.getOnlineUsers()).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<RelayFrame> relay(StreamObserver<Empty> responseObserver) {
+            return new Inbound(responseObserver);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package be.msec.labgrpc.server;
+
+import io.grpc.Status;
+
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// how far one subscriber is behind the logs it reads, and the overflow policy applied to it
+// only called from the deliver of its subscriber, which its OutboundStream runs once at a time,
+// the volatile fields are read by the admin service
+public class LagTracker {
+
+    private static final Logger logger = Logger.getLogger(LagTracker.class.getName());
+
+    private final String name;
+    private final OverflowPolicy policy;
+    private final ChatMetrics metrics;
+    private volatile long lag;
+    private volatile long skipped;
+    private volatile long lastSequence = -1;
+    // skipped messages not reported in a MISSED marker yet
+    private long missed;
+    // last sequence number of a gap a resuming subscriber cannot get, so the marker does not wait for a next message
+    private long missedUpTo;
+
+    public LagTracker(String name, OverflowPolicy policy, ChatMetrics metrics) {
+        this.name = name;
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    /* ----------------------------- DELIVER ----------------------------- */
+    // write the MISSED marker if messages were skipped, before the next message
+    // returns false if the stream is not ready for the message after it
+    public <T> boolean reportMissed(OutboundStream<T> stream, Function<Message, T> encoder, Message next) {
+        if (missed > 0) {
+            stream.write(encoder.apply(Message.missed(missed, next.getSequence() - 1)));
+            missed = 0;
+            missedUpTo = 0;
+        }
+        return stream.isReady();
+    }
+
+    // when there is no next message, write the marker of a gap right away
+    public <T> void reportMissed(OutboundStream<T> stream, Function<Message, T> encoder) {
+        if (missed > 0 && missedUpTo > 0 && stream.isReady()) {
+            stream.write(encoder.apply(Message.missed(missed, missedUpTo)));
+            missed = 0;
+            missedUpTo = 0;
+        }
+    }
+
+    // a resuming subscriber asked for count messages up to the given sequence number that are no longer kept,
+    // they are reported in a MISSED marker whatever the overflow policy
+    public void gap(long count, long upTo) {
+        if (count > 0) {
+            logger.log(Level.WARNING, name + " resumed " + count + " messages too far back, up to sequence " + upTo + ".");
+            missed += count;
+            missedUpTo = Math.max(missedUpTo, upTo);
+        }
+    }
+
+    public void written(Message msg) {
+        lastSequence = msg.getSequence();
+    }
+
+    // the ring of a log overwrote messages before the subscriber read them
+    public void overwritten(long count) {
+        if (count > 0) {
+            logger.log(Level.WARNING, name + " fell behind, skipped " + count + " messages.");
+            skip(count);
+        }
+    }
+
+    // after writing while the stream was ready, returns false if the stream was failed
+    public boolean check(OutboundStream<?> stream, LogCursor... cursors) {
+        long total = 0;
+        for (LogCursor cursor : cursors) {
+            long behind = cursor.getLag();
+            if (behind > policy.getMaxLag()) {
+                if (policy.getAction() == OverflowPolicy.Action.DISCONNECT) {
+                    lag = behind;
+                    metrics.lagDisconnect();
+                    logger.log(Level.WARNING, name + " is " + behind + " messages behind, disconnected.");
+                    stream.fail(Status.RESOURCE_EXHAUSTED.withDescription(
+                            "Fell " + behind + " messages behind, resume after sequence " + lastSequence));
+                    return false;
+                }
+                long excess = behind - policy.getMaxLag();
+                cursor.skipTo(cursor.getPosition() + excess);
+                behind -= excess;
+                skip(excess);
+            }
+            total += behind;
+        }
+        lag = total;
+        return true;
+    }
+
+    private void skip(long count) {
+        skipped += count;
+        metrics.skipped(count);
+        if (policy.getAction() == OverflowPolicy.Action.COLLAPSE) {
+            missed += count;
+        }
+    }
+
+    /* ----------------------------- GETTERS ----------------------------- */
+    public String getName() {
+        return name;
+    }
+
+    public long getLag() {
+        return lag;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+}
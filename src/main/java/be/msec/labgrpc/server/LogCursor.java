@@ -0,0 +1,72 @@
+package be.msec.labgrpc.server;
+
+import java.util.Arrays;
+
+// reads a message log from a position onward, a batch at a time
+// when the ring overwrote the next position, the cursor skips ahead to the oldest retained entry
+public class LogCursor {
+
+    private final MessageLog log;
+    private final Message[] batch;
+    private long position; // log position of the next message
+    private int index;
+    private int count;
+    private long skipped;
+
+    public LogCursor(MessageLog log, long position, int batchSize) {
+        this.log = log;
+        this.position = position;
+        this.batch = new Message[batchSize];
+    }
+
+    // the next message, or null when the cursor is at the end of the log
+    public Message peek() {
+        if (index == count) {
+            refill();
+            if (count == 0) {
+                return null;
+            }
+        }
+        return batch[index];
+    }
+
+    public void advance() {
+        batch[index++] = null;
+        position++;
+    }
+
+    private void refill() {
+        index = 0;
+        while ((count = log.read(position, batch)) < 0) {
+            long head = log.getHead();
+            skipped += head - position;
+            position = head;
+        }
+    }
+
+    // number of messages in the log after the cursor
+    public long getLag() {
+        return log.getTail() - position;
+    }
+
+    // continue at the given position, the messages before it are not read (not counted as skipped)
+    public void skipTo(long target) {
+        if (target > position) {
+            Arrays.fill(batch, null);
+            index = 0;
+            count = 0;
+            position = target;
+        }
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    // number of messages skipped since the last call
+    public long takeSkipped() {
+        long n = skipped;
+        skipped = 0;
+        return n;
+    }
+}
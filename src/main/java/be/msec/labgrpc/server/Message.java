@@ -1,5 +1,9 @@
 package be.msec.labgrpc.server;
 
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.MessageText;
+import be.msec.labgrpc.PreEncoded;
+import be.msec.labgrpc.ServerFrame;
 import be.msec.labgrpc.User;
 
 import java.sql.Timestamp;
@@ -15,8 +19,19 @@ public class Message {
     private final MessageType messageType;
     private final String content;
     private String receiver;
+    private String room;
     private final Timestamp timestamp;
     private Set<String> activeUsers;
+    private long sequence;
+    private int estimatedSize;
+    // built once, on the first delivery
+    private volatile ChatEnvelope envelope;
+    // the serialized forms, built on the first delivery of each kind and written as is to every stream
+    private volatile PreEncoded<ChatEnvelope> encodedEnvelope;
+    private volatile PreEncoded<ServerFrame> encodedFrame;
+    private volatile PreEncoded<MessageText> encodedText;
+    // System.nanoTime() when this server accepted the message, 0 for messages from the journal or another server
+    private long acceptedNanos;
 
     /* ----------------------------- CONSTRUCTOR ----------------------------- */
     public Message(User sender, MessageType messageType, String text) {
@@ -24,6 +39,7 @@ public class Message {
         this.messageType = messageType;
         this.content = text;
         this.timestamp = new Timestamp(new Date().getTime());
+        this.acceptedNanos = System.nanoTime();
     }
 
     /* CONNECT / DISCONNECT MESSAGE */
@@ -39,12 +55,39 @@ public class Message {
         this.content = text;
         this.receiver = receiver;
         this.timestamp = new Timestamp(new Date().getTime());
+        this.acceptedNanos = System.nanoTime();
+    }
+
+    /* ROOM MESSAGE */
+    public static Message toRoom(User sender, String room, String text) {
+        Message message = new Message(sender, MessageType.ROOM, text);
+        message.room = room;
+        return message;
+    }
+
+    /* MARKER FOR SKIPPED MESSAGES */
+    // only written to the stream of a subscriber that fell behind, never stored
+    public static Message missed(long count, long lastSkippedSequence) {
+        Message message = new Message(new User(""), MessageType.MISSED, "You missed " + count + " messages", null,
+                new Timestamp(System.currentTimeMillis()));
+        message.sequence = lastSkippedSequence;
+        return message;
+    }
+
+    /* RESTORED FROM THE JOURNAL */
+    public Message(User sender, MessageType messageType, String text, String receiver, Timestamp timestamp) {
+        this.sender = sender;
+        this.messageType = messageType;
+        this.content = text;
+        this.receiver = receiver;
+        this.timestamp = timestamp;
     }
 
     public Message(MessageType messageType, String text) {
         this.messageType = messageType;
         this.content = text;
         this.timestamp = new Timestamp(new Date().getTime());
+        this.acceptedNanos = System.nanoTime();
     }
 
     /* ----------------------------- GETTERS ----------------------------- */
@@ -60,10 +103,19 @@ public class Message {
         return receiver;
     }
 
+    public String getRoom() {
+        return room;
+    }
+
     public Timestamp getTimestamp() {
         return timestamp;
     }
 
+    public String getText() {
+        return content;
+    }
+
+    // legacy text of the syncMessages stream
     public String getContent() {
         switch (messageType) {
             case BROADCAST:
@@ -75,10 +127,101 @@ public class Message {
         }
     }
 
+    // the same envelope is shared by every delivery of this message, the sequence must be set before
+    public ChatEnvelope toEnvelope() {
+        ChatEnvelope result = envelope;
+        if (result == null) {
+            ChatEnvelope.Builder builder = ChatEnvelope.newBuilder()
+                    .setId(sequence)
+                    .setType(envelopeType())
+                    .setSender(sender.getName())
+                    .setTimestamp(timestamp.getTime())
+                    .setBody(content);
+            if (receiver != null) {
+                builder.setReceiver(receiver);
+            }
+            if (room != null) {
+                builder.setRoom(room);
+            }
+            result = builder.build();
+            envelope = result;
+        }
+        return result;
+    }
+
+    // for resumeMessages and syncRoom, like the envelope the same bytes are shared by every delivery
+    public PreEncoded<ChatEnvelope> encodedEnvelope() {
+        PreEncoded<ChatEnvelope> result = encodedEnvelope;
+        if (result == null) {
+            result = PreEncoded.of(toEnvelope());
+            encodedEnvelope = result;
+        }
+        return result;
+    }
+
+    // for the chatSession stream
+    public PreEncoded<ServerFrame> encodedFrame() {
+        PreEncoded<ServerFrame> result = encodedFrame;
+        if (result == null) {
+            result = PreEncoded.of(ServerFrame.newBuilder().setMessage(toEnvelope()).build());
+            encodedFrame = result;
+        }
+        return result;
+    }
+
+    // for the legacy syncMessages stream
+    public PreEncoded<MessageText> encodedText() {
+        PreEncoded<MessageText> result = encodedText;
+        if (result == null) {
+            result = PreEncoded.of(MessageDispatcher.toMessageText(this));
+            encodedText = result;
+        }
+        return result;
+    }
+
+    private ChatEnvelope.Type envelopeType() {
+        switch (messageType) {
+            case PRIVATE:
+                return ChatEnvelope.Type.PRIVATE;
+            case ROOM:
+                return ChatEnvelope.Type.ROOM;
+            case MISSED:
+                return ChatEnvelope.Type.MISSED;
+            default:
+                return ChatEnvelope.Type.BROADCAST;
+        }
+    }
+
     public Set<String> getActiveUsers() {
         return activeUsers;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getAcceptedNanos() {
+        return acceptedNanos;
+    }
+
+    // rough heap size of this message: object headers and fields plus 2 bytes per character
+    public int estimateSize() {
+        if (estimatedSize == 0) {
+            int chars = content.length() + (receiver == null ? 0 : receiver.length());
+            estimatedSize = 128 + 2 * chars;
+        }
+        return estimatedSize;
+    }
+
+    // check if message is intended for user, private messages only for the exact sender and receiver
+    // (room membership is checked by the room)
+    public boolean isVisibleTo(String userName) {
+        if (messageType != MessageType.PRIVATE) {
+            return true;
+        }
+        return receiver.equals(userName) || sender.getName().equals(userName);
+    }
+
     /* ----------------------------- SETTERS ----------------------------- */
     public void setSender(User user) {
         this.sender = user;
@@ -88,13 +231,19 @@ public class Message {
         this.activeUsers = activeUsers;
     }
 
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     /* ----------------------------- OVERRIDE ----------------------------- */
     @Override
     public String toString() {
         return "Message{" +
-                "sender=" + sender +
+                "sequence=" + sequence +
+                ", sender=" + sender +
                 ", messageType=" + messageType +
                 ", receiver=" + receiver +
+                ", room=" + room +
                 ", timestamp=" + timestamp +
                 ", content=" + content +
                 '}';
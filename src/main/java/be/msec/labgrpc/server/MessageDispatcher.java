@@ -0,0 +1,298 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.ChatEnvelope;
+import be.msec.labgrpc.MessageText;
+import be.msec.labgrpc.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// pushes new messages to the open message streams, without parking a thread per subscriber
+// every subscriber reads the public history and its own mailbox with its own cursors, so it receives every message in order
+// a private message only wakes up the streams of its sender and receiver
+// a subscriber that does not read its stream is handled by the overflow policy once it falls maxLag messages behind
+public class MessageDispatcher {
+
+    private static final Logger logger = Logger.getLogger(MessageDispatcher.class.getName());
+    private static final int READ_BATCH = 32;
+    // most messages a resuming subscriber gets from the journal, older ones are skipped
+    private static final int MAX_JOURNAL_REPLAY = 10000;
+
+    private final UserManager userManager;
+    private final ChatMetrics metrics;
+    private final OverflowPolicy overflow;
+    private final MessageLog history;
+    private final Set<Subscriber<?>> subscribers;
+    private final Map<String, Set<Subscriber<?>>> subscribersByUser;
+    private volatile Consumer<Message> relay = msg -> {
+    };
+
+    public MessageDispatcher(UserManager userManager) {
+        this(userManager, new ChatMetrics(new MetricRegistry()));
+    }
+
+    public MessageDispatcher(UserManager userManager, ChatMetrics metrics) {
+        this(userManager, metrics, OverflowPolicy.fromSystemProperties());
+    }
+
+    public MessageDispatcher(UserManager userManager, ChatMetrics metrics, OverflowPolicy overflow) {
+        this.userManager = userManager;
+        this.metrics = metrics;
+        this.overflow = overflow;
+        this.history = userManager.getHistory();
+        subscribers = ConcurrentHashMap.newKeySet();
+        subscribersByUser = new ConcurrentHashMap<>();
+    }
+
+    /* ----------------------------- SUBSCRIBE ----------------------------- */
+    // the subscriber first receives the messages after lastSequence, then switches to new messages
+    // with a negative lastSequence it only receives messages added from now on
+    // the part that is no longer in memory is read from the journal, what is not there either is reported
+    // in a MISSED marker before the first message after it
+    public <T> void subscribe(String userName, OutboundStream<T> stream, Function<Message, T> encoder, long lastSequence) {
+        // before the mailbox is created, a new mailbox does not know what a dropped one held
+        long mailboxEvicted = userManager.getMailboxEvictedSequence(userName);
+        MessageLog mailbox = userManager.mailboxToFollow(userName);
+        Subscriber<T> subscriber;
+        if (lastSequence < 0) {
+            subscriber = new Subscriber<>(userName, stream, encoder, history.getTail(), mailbox, mailbox.getTail());
+        } else {
+            long after = lastSequence;
+            Deque<Message> backfill = null;
+            long evictedSequence = Math.max(history.getEvictedSequence(), mailboxEvicted);
+            // the messages in (lastSequence, lost] can no longer be sent
+            long lost = lastSequence;
+            if (lastSequence < evictedSequence && userManager.hasJournal()) {
+                // everything up to evictedSequence comes from the journal, the rest from memory
+                backfill = userManager.readJournal(lastSequence, evictedSequence,
+                        msg -> msg.isVisibleTo(userName), MAX_JOURNAL_REPLAY + 1);
+                // the journal may have deleted its oldest segments, and only the newest messages are replayed
+                lost = Math.min(userManager.getJournalFirstSequence() - 1, evictedSequence);
+                if (backfill.size() > MAX_JOURNAL_REPLAY) {
+                    backfill.removeFirst();
+                    lost = Math.max(lost, backfill.peekFirst().getSequence() - 1);
+                }
+                after = evictedSequence;
+                logger.log(Level.INFO, userName + " resumes after " + lastSequence + ", "
+                        + backfill.size() + " messages read from the journal.");
+            } else if (lastSequence < evictedSequence) {
+                lost = evictedSequence;
+            }
+            subscriber = new Subscriber<>(userName, stream, encoder,
+                    history.positionAfter(after), mailbox, mailbox.positionAfter(after));
+            subscriber.backfill = backfill;
+            // counts sequence numbers, some of them may have been private messages of other users
+            subscriber.lag.gap(lost - lastSequence, lost);
+        }
+        register(subscriber);
+    }
+
+    public void subscribe(String userName, OutboundStream<ChatEnvelope> stream, long lastSequence) {
+        subscribe(userName, stream, Message::toEnvelope, lastSequence);
+    }
+
+    private void register(Subscriber<?> subscriber) {
+        String userName = subscriber.userName;
+        subscriber.stream.onClose(() -> unsubscribe(subscriber));
+        subscribers.add(subscriber);
+        subscribersByUser.computeIfAbsent(userName, name -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        logger.log(Level.INFO, userName + " subscribed to messages.");
+        subscriber.stream.addSource(subscriber);
+    }
+
+    private void unsubscribe(Subscriber<?> subscriber) {
+        if (subscribers.remove(subscriber)) {
+            subscriber.stream.removeSource(subscriber);
+            subscribersByUser.computeIfPresent(subscriber.userName, (name, set) -> {
+                set.remove(subscriber);
+                return set.isEmpty() ? null : set;
+            });
+            logger.log(Level.INFO, subscriber.userName + " unsubscribed from messages.");
+        }
+    }
+
+    // for the legacy syncMessages stream
+    public static MessageText toMessageText(Message msg) {
+        return MessageText.newBuilder()
+                .setSender(msg.getSender().getName())
+                .setText(msg.getContent())
+                .setSequence(msg.getSequence()).build();
+    }
+
+    /* ----------------------------- DISPATCH ----------------------------- */
+    // a new message was stored, let the subscribers it concerns catch up while their stream is ready
+    public void dispatch(Message msg) {
+        metrics.accepted(msg);
+        deliver(msg);
+        relay.accept(msg);
+    }
+
+    // a message from another server of the cluster, not relayed again
+    public void dispatchRelayed(Message msg) {
+        deliver(msg);
+    }
+
+    // called with every message sent on this server
+    public void setRelay(Consumer<Message> relay) {
+        this.relay = relay;
+    }
+
+    private void deliver(Message msg) {
+        if (msg.getType() == MessageType.PRIVATE) {
+            String sender = msg.getSender().getName();
+            String receiver = msg.getReceiverString();
+            drainUser(sender);
+            if (!receiver.equals(sender)) {
+                drainUser(receiver);
+            }
+        } else {
+            drainAll();
+        }
+    }
+
+    // a batch of messages was stored, every concerned subscriber is drained once
+    public void dispatchAll(List<Message> messages) {
+        Set<String> users = new HashSet<>();
+        boolean broadcast = false;
+        for (Message msg : messages) {
+            metrics.accepted(msg);
+            if (msg.getType() == MessageType.PRIVATE) {
+                users.add(msg.getSender().getName());
+                users.add(msg.getReceiverString());
+            } else {
+                broadcast = true;
+            }
+        }
+        if (broadcast) {
+            drainAll();
+        } else {
+            for (String userName : users) {
+                drainUser(userName);
+            }
+        }
+        for (Message msg : messages) {
+            relay.accept(msg);
+        }
+    }
+
+    private void drainAll() {
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.stream.drain();
+        }
+    }
+
+    private void drainUser(String userName) {
+        for (Subscriber<?> subscriber : subscribersByUser.getOrDefault(userName, Collections.emptySet())) {
+            subscriber.stream.drain();
+        }
+    }
+
+    public void close() {
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.stream.complete();
+        }
+        subscribers.clear();
+        subscribersByUser.clear();
+    }
+
+    public boolean hasSubscribers(String userName) {
+        return subscribersByUser.containsKey(userName);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public List<LagTracker> getLags() {
+        List<LagTracker> lags = new ArrayList<>();
+        for (Subscriber<?> subscriber : subscribers) {
+            lags.add(subscriber.lag);
+        }
+        return lags;
+    }
+
+    // lag of the subscriber that is furthest behind
+    public long getMaxLag() {
+        long max = 0;
+        for (Subscriber<?> subscriber : subscribers) {
+            max = Math.max(max, subscriber.lag.getLag());
+        }
+        return max;
+    }
+
+    /* ----------------------------- SUBSCRIBER ----------------------------- */
+    private class Subscriber<T> implements OutboundStream.Source {
+        private final String userName;
+        private final OutboundStream<T> stream;
+        private final Function<Message, T> encoder;
+        // messages from the journal that are delivered before the ones in memory
+        private Deque<Message> backfill;
+        private final LogCursor publicCursor;
+        private final LogCursor mailboxCursor;
+        private final LagTracker lag;
+
+        Subscriber(String userName, OutboundStream<T> stream, Function<Message, T> encoder,
+                   long publicPosition, MessageLog mailbox, long mailboxPosition) {
+            this.userName = userName;
+            this.stream = stream;
+            this.encoder = encoder;
+            this.publicCursor = new LogCursor(history, publicPosition, READ_BATCH);
+            this.mailboxCursor = new LogCursor(mailbox, mailboxPosition, READ_BATCH);
+            this.lag = new LagTracker(userName + " messages", overflow, metrics);
+        }
+
+        @Override
+        public void deliver() {
+            while (backfill != null && stream.isReady()) {
+                Message msg = backfill.pollFirst();
+                if (msg == null) {
+                    backfill = null;
+                } else if (lag.reportMissed(stream, encoder, msg)) {
+                    stream.write(encoder.apply(msg));
+                    lag.written(msg);
+                } else {
+                    backfill.addFirst(msg);
+                }
+            }
+            // merge both logs in sequence order, up to the messages that were stored in both when the merge started,
+            // otherwise a message just added to the mailbox could overtake an older one not yet in the public history
+            // the newer messages are delivered by the drain that follows their dispatch
+            long stored = userManager.getStoredSequence();
+            while (stream.isReady()) {
+                Message pub = publicCursor.peek();
+                Message own = mailboxCursor.peek();
+                lag.overwritten(publicCursor.takeSkipped() + mailboxCursor.takeSkipped());
+                if (pub != null && pub.getSequence() > stored) {
+                    pub = null;
+                }
+                if (own != null && own.getSequence() > stored) {
+                    own = null;
+                }
+                if (pub == null && own == null) {
+                    lag.reportMissed(stream, encoder);
+                    break;
+                }
+                boolean fromPublic = own == null || (pub != null && pub.getSequence() < own.getSequence());
+                Message next = fromPublic ? pub : own;
+                if (!lag.reportMissed(stream, encoder, next)) {
+                    break;
+                }
+                (fromPublic ? publicCursor : mailboxCursor).advance();
+                stream.write(encoder.apply(next));
+                lag.written(next);
+                metrics.delivered(next);
+            }
+            lag.check(stream, publicCursor, mailboxCursor);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// append-only journal of messages, written to memory-mapped segment files
+//
+// record: int length | int crc32 | long sequence | long timestamp | byte type | sender | receiver | content
+// strings are written as int length + UTF-8 bytes, a length of 0 marks the end of the written part of a segment
+//
+// appends only copy the record into the mapping, a flusher thread forces the segment to disk and completes
+// every append that was waiting for it at once (group commit)
+//
+// a segment dropped under maxSegments while a read walks it is only deleted once the last such read is done
+public class MessageJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(MessageJournal.class.getName());
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int HEADER_BYTES = 8;
+    private static final int FIXED_PAYLOAD_BYTES = 8 + 8 + 1 + 3 * 4;
+    private static final byte TYPE_BROADCAST = 0;
+    private static final byte TYPE_PRIVATE = 1;
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long flushDelayMillis;
+    private final int maxSegments;
+
+    private final Object lock = new Object();
+    private final Deque<Path> segments;
+    // number of reads walking each segment, and the dropped segments that wait for them
+    private final Map<Path, Integer> readers;
+    private final Set<Path> dropped;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private List<CompletableFuture<Void>> pending;
+    private boolean closed;
+    private final Thread flusher;
+
+    /* ----------------------------- CONSTRUCTOR ----------------------------- */
+    // maxSegments: oldest segment files are deleted once there are more, 0 keeps all of them
+    public MessageJournal(Path directory, int segmentBytes, long flushDelayMillis, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.flushDelayMillis = flushDelayMillis;
+        this.maxSegments = maxSegments;
+        this.segments = new ArrayDeque<>();
+        this.readers = new HashMap<>();
+        this.dropped = new HashSet<>();
+        this.pending = new ArrayList<>();
+
+        Files.createDirectories(directory);
+        segments.addAll(listSegments(directory));
+        if (!segments.isEmpty()) {
+            // continue writing at the end of the last valid record of the newest segment
+            Path last = segments.peekLast();
+            channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+            buffer.position(scan(buffer, null));
+        }
+
+        flusher = new Thread(this::flushLoop, "chat-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // -Dchat.journal.dir=<dir> enables the journal, returns null when it is not configured
+    public static MessageJournal fromSystemProperties() throws IOException {
+        String dir = System.getProperty("chat.journal.dir");
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new MessageJournal(
+                Paths.get(dir),
+                Integer.getInteger("chat.journal.segmentBytes", DEFAULT_SEGMENT_BYTES),
+                Long.getLong("chat.journal.flushDelayMillis", 0),
+                Integer.getInteger("chat.journal.maxSegments", 0));
+    }
+
+    /* ----------------------------- APPEND ----------------------------- */
+    // the returned future completes once the message is forced to disk
+    public CompletableFuture<Void> append(Message message) {
+        byte[] sender = bytes(message.getSender() == null ? null : message.getSender().getName());
+        byte[] receiver = bytes(message.getReceiverString());
+        byte[] content = bytes(message.getText());
+        int payload = FIXED_PAYLOAD_BYTES + sender.length + receiver.length + content.length;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        synchronized (lock) {
+            try {
+                if (closed) {
+                    throw new IOException("journal is closed");
+                }
+                // keep room for the terminating 0 length
+                if (buffer == null || buffer.remaining() < HEADER_BYTES + payload + 4) {
+                    roll(message.getSequence(), HEADER_BYTES + payload + 4);
+                }
+                int start = buffer.position();
+                buffer.position(start + HEADER_BYTES);
+                buffer.putLong(message.getSequence());
+                buffer.putLong(message.getTimestamp().getTime());
+                buffer.put(message.getType() == MessageType.PRIVATE ? TYPE_PRIVATE : TYPE_BROADCAST);
+                putBytes(buffer, sender);
+                putBytes(buffer, receiver);
+                putBytes(buffer, content);
+                // the length is written last, so a torn record reads as the end of the segment
+                buffer.putInt(start + 4, crc(buffer, start + HEADER_BYTES, payload));
+                buffer.putInt(start, payload);
+                pending.add(future);
+                lock.notifyAll();
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    private void roll(long firstSequence, int recordBytes) throws IOException {
+        if (recordBytes > segmentBytes) {
+            throw new IOException("message of " + recordBytes + " bytes does not fit in a journal segment");
+        }
+        if (buffer != null) {
+            buffer.force();
+            channel.close();
+        }
+        Path segment = directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segments.addLast(segment);
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            Path oldest = segments.removeFirst();
+            if (readers.containsKey(oldest)) {
+                dropped.add(oldest);
+            } else {
+                Files.deleteIfExists(oldest);
+            }
+        }
+        logger.log(Level.INFO, "Started journal segment " + segment.getFileName());
+    }
+
+    /* ----------------------------- FLUSH ----------------------------- */
+    private void flushLoop() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                }
+                if (flushDelayMillis > 0) {
+                    // give concurrent appends the chance to join this flush
+                    Thread.sleep(flushDelayMillis);
+                }
+                flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush() {
+        List<CompletableFuture<Void>> batch;
+        MappedByteBuffer toForce;
+        synchronized (lock) {
+            batch = pending;
+            pending = new ArrayList<>();
+            toForce = buffer;
+        }
+        try {
+            // a segment that was rolled in the meantime is forced by roll itself
+            toForce.force();
+            for (CompletableFuture<Void> future : batch) {
+                future.complete(null);
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not flush journal", e);
+            for (CompletableFuture<Void> future : batch) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (buffer != null) {
+                buffer.force();
+                channel.close();
+            }
+        }
+    }
+
+    /* ----------------------------- REPLAY ----------------------------- */
+    // read every record in the journal, oldest first, returns the number of records
+    public int replay(Consumer<Message> consumer) throws IOException {
+        return read(0, Long.MAX_VALUE, consumer);
+    }
+
+    // read the records with a sequence number in (after, upTo], oldest first, returns the number of records
+    public int read(long after, long upTo, Consumer<Message> consumer) throws IOException {
+        List<Path> files;
+        synchronized (lock) {
+            files = new ArrayList<>(segments);
+            for (Path file : files) {
+                readers.merge(file, 1, Integer::sum);
+            }
+        }
+        try {
+            return read(files, after, upTo, consumer);
+        } finally {
+            release(files);
+        }
+    }
+
+    private int read(List<Path> files, long after, long upTo, Consumer<Message> consumer) throws IOException {
+        int[] count = new int[1];
+        for (int i = 0; i < files.size(); i++) {
+            // a segment only holds sequence numbers below the first one of the next segment
+            if (i + 1 < files.size() && firstSequence(files.get(i + 1)) <= after + 1) {
+                continue;
+            }
+            if (firstSequence(files.get(i)) > upTo) {
+                break;
+            }
+            try (FileChannel in = FileChannel.open(files.get(i), StandardOpenOption.READ)) {
+                scan(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), message -> {
+                    if (message.getSequence() > after && message.getSequence() <= upTo) {
+                        consumer.accept(message);
+                        count[0]++;
+                    }
+                });
+            }
+        }
+        return count[0];
+    }
+
+    // delete the dropped segments that no other read is walking
+    private void release(List<Path> files) throws IOException {
+        synchronized (lock) {
+            for (Path file : files) {
+                if (readers.merge(file, -1, Integer::sum) == 0) {
+                    readers.remove(file);
+                    if (dropped.remove(file)) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    // the sequence number of the oldest message the journal still has, older segments were deleted under maxSegments
+    // Long.MAX_VALUE when nothing was written yet
+    public long getFirstSequence() {
+        synchronized (lock) {
+            return segments.isEmpty() ? Long.MAX_VALUE : firstSequence(segments.peekFirst());
+        }
+    }
+
+    // decode records from the start of the segment, returns the offset after the last valid record
+    private static int scan(ByteBuffer segment, Consumer<Message> consumer) {
+        int position = 0;
+        while (segment.limit() - position >= HEADER_BYTES) {
+            int length = segment.getInt(position);
+            if (length < FIXED_PAYLOAD_BYTES || length > segment.limit() - position - HEADER_BYTES) {
+                break;
+            }
+            if (segment.getInt(position + 4) != crc(segment, position + HEADER_BYTES, length)) {
+                logger.log(Level.WARNING, "Journal record at offset " + position + " is corrupt, ignoring the rest of the segment");
+                break;
+            }
+            if (consumer != null) {
+                ByteBuffer record = segment.duplicate();
+                record.position(position + HEADER_BYTES);
+                consumer.accept(decode(record));
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static Message decode(ByteBuffer record) {
+        long sequence = record.getLong();
+        Timestamp timestamp = new Timestamp(record.getLong());
+        MessageType type = record.get() == TYPE_PRIVATE ? MessageType.PRIVATE : MessageType.BROADCAST;
+        String sender = getString(record);
+        String receiver = getString(record);
+        String content = getString(record);
+        Message message = new Message(new User(sender), type, content, receiver.isEmpty() ? null : receiver, timestamp);
+        message.setSequence(sequence);
+        return message;
+    }
+
+    /* ----------------------------- HELPERS ----------------------------- */
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // the zero padded first sequence number makes the names sort in journal order
+        files.sort(null);
+        return files;
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
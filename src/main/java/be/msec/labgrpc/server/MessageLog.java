@@ -0,0 +1,152 @@
+package be.msec.labgrpc.server;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Predicate;
+
+// ring buffer of messages, addressed by a position that keeps increasing
+// the ring holds at most maxMessages entries, the retention policy evicts the oldest entries one by one
+// by moving the head forward, so nothing is ever copied
+public class MessageLog {
+
+    private final Message[] ring;
+    private final RetentionPolicy retention;
+    private long head; // position of the oldest entry still in the ring
+    // position the next entry is written to, volatile so subscribers can check their lag without the lock
+    private volatile long tail;
+    private long bytes; // estimated heap size of the entries in the ring
+    private long evictedSequence; // sequence number of the last evicted entry, 0 if nothing was evicted
+
+    public MessageLog(int capacity) {
+        this(RetentionPolicy.ofMessages(capacity));
+    }
+
+    public MessageLog(RetentionPolicy retention) {
+        this(retention, 0);
+    }
+
+    // evictedSequence: messages up to it may have belonged to the log but are not in it, such as those of a dropped log
+    public MessageLog(RetentionPolicy retention, long evictedSequence) {
+        this.retention = retention;
+        this.evictedSequence = evictedSequence;
+        ring = new Message[retention.getMaxMessages()];
+    }
+
+    /* ----------------------------- WRITE ----------------------------- */
+    public synchronized long append(Message message) {
+        if (tail - head == ring.length) {
+            evictOldest();
+        }
+        ring[index(tail)] = message;
+        bytes += message.estimateSize();
+        long position = tail++;
+        if (retention.getMaxBytes() > 0) {
+            // always keep the newest entry, even if it is larger than the budget on its own
+            while (bytes > retention.getMaxBytes() && tail - head > 1) {
+                evictOldest();
+            }
+        }
+        return position;
+    }
+
+    /* ----------------------------- RETENTION ----------------------------- */
+    // drop the entries older than the maximum age, returns the number of evicted entries
+    public synchronized int evictExpired(long now) {
+        if (!retention.hasMaxAge()) {
+            return 0;
+        }
+        long oldest = now - retention.getMaxAgeMillis();
+        int evicted = 0;
+        while (head < tail && ring[index(head)].getTimestamp().getTime() < oldest) {
+            evictOldest();
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private void evictOldest() {
+        int index = index(head);
+        bytes -= ring[index].estimateSize();
+        evictedSequence = ring[index].getSequence();
+        ring[index] = null;
+        head++;
+    }
+
+    /* ----------------------------- READ ----------------------------- */
+    // copy the entries starting at position into the buffer, returns the number of entries copied
+    // or -1 when position is no longer in the ring
+    public synchronized int read(long position, Message[] buffer) {
+        if (position < head) {
+            return -1;
+        }
+        int count = (int) Math.min(buffer.length, tail - position);
+        for (int i = 0; i < count; i++) {
+            buffer[i] = ring[index(position + i)];
+        }
+        return count;
+    }
+
+    // the newest entries (at most limit) with a sequence number below the given one that pass the filter,
+    // oldest first, a sequence number of 0 or less reads from the newest entry
+    public synchronized List<Message> readBefore(long sequence, int limit, Predicate<Message> filter) {
+        LinkedList<Message> page = new LinkedList<>();
+        long position = sequence > 0 ? positionAfter(sequence - 1) : tail;
+        while (--position >= head && page.size() < limit) {
+            Message message = ring[index(position)];
+            if (filter.test(message)) {
+                page.addFirst(message);
+            }
+        }
+        return page;
+    }
+
+    // position of the first entry with a sequence number above the given one
+    public synchronized long positionAfter(long sequence) {
+        long low = head;
+        long high = tail;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (ring[index(mid)].getSequence() <= sequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /* ----------------------------- GETTERS ----------------------------- */
+    public synchronized long getHead() {
+        return head;
+    }
+
+    public long getTail() {
+        return tail;
+    }
+
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    // messages up to this sequence number are no longer in the ring
+    public synchronized long getEvictedSequence() {
+        return evictedSequence;
+    }
+
+    // estimated number of bytes the retained messages take on the heap
+    public synchronized long getFootprint() {
+        return bytes;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public RetentionPolicy getRetention() {
+        return retention;
+    }
+
+    private int index(long position) {
+        return (int) (position % ring.length);
+    }
+}
@@ -1,5 +1,5 @@
 package be.msec.labgrpc.server;
 
 public enum MessageType {
-    PRIVATE, BROADCAST
+    PRIVATE, BROADCAST, ROOM, MISSED
 }
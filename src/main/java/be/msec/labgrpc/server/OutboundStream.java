@@ -0,0 +1,156 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.CompressionPolicy;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// the outgoing side of a streaming call, shared by everything that writes to it
+// writes are serialized and only happen while the stream is ready, the onReady handler resumes them
+// the single values wait in a bounded queue, a client that stops reading while it keeps sending fails
+// the call with RESOURCE_EXHAUSTED instead of filling the heap (-Dchat.subscriber.maxQueued=1024)
+public class OutboundStream<T> {
+
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+
+    // writes values while the stream is ready, only called from within drain
+    public interface Source {
+        void deliver();
+    }
+
+    private final ServerCallStreamObserver<T> observer;
+    private final List<Source> sources;
+    // single values such as acks, written before the sources
+    private final Queue<T> queued;
+    private final AtomicInteger queuedCount;
+    private final int maxQueued;
+    private final CompressionPolicy compression;
+    private final List<Runnable> closeHandlers;
+    // number of drain requests, only the caller that raises it from 0 writes to the stream
+    private final AtomicInteger wip;
+    private final AtomicBoolean closeHandled;
+    private volatile boolean completing;
+    // set by fail, the call ends with this status at the next drain
+    private volatile Status failure;
+    private boolean completed;
+
+    // must be created before the call handler returns, it installs the onReady and onCancel handlers
+    public OutboundStream(ServerCallStreamObserver<T> observer) {
+        this(observer, CompressionPolicy.NONE);
+    }
+
+    // values of at least the policy's minimum size are compressed
+    public OutboundStream(ServerCallStreamObserver<T> observer, CompressionPolicy compression) {
+        this(observer, Integer.getInteger("chat.subscriber.maxQueued", DEFAULT_MAX_QUEUED), compression);
+    }
+
+    public OutboundStream(ServerCallStreamObserver<T> observer, int maxQueued, CompressionPolicy compression) {
+        this.observer = observer;
+        this.sources = new CopyOnWriteArrayList<>();
+        this.queued = new ConcurrentLinkedQueue<>();
+        this.queuedCount = new AtomicInteger();
+        this.maxQueued = maxQueued;
+        this.compression = compression;
+        this.closeHandlers = new CopyOnWriteArrayList<>();
+        this.wip = new AtomicInteger();
+        this.closeHandled = new AtomicBoolean();
+        compression.enable(observer);
+        observer.setOnReadyHandler(this::drain);
+        observer.setOnCancelHandler(this::closed);
+    }
+
+    /* ----------------------------- SOURCES ----------------------------- */
+    public void addSource(Source source) {
+        sources.add(source);
+        drain();
+    }
+
+    public void removeSource(Source source) {
+        sources.remove(source);
+    }
+
+    // runs once, when the call is cancelled or completed
+    public void onClose(Runnable handler) {
+        closeHandlers.add(handler);
+    }
+
+    public void enqueue(T value) {
+        if (queuedCount.incrementAndGet() > maxQueued) {
+            fail(Status.RESOURCE_EXHAUSTED.withDescription("More than " + maxQueued + " frames not read by the client"));
+            return;
+        }
+        queued.offer(value);
+        drain();
+    }
+
+    /* ----------------------------- WRITING ----------------------------- */
+    public boolean isReady() {
+        return observer.isReady();
+    }
+
+    // only for sources, from within deliver
+    public void write(T value) {
+        compression.beforeWrite(observer, value);
+        observer.onNext(value);
+    }
+
+    // complete the call once the queued values are written
+    public void complete() {
+        completing = true;
+        drain();
+    }
+
+    // end the call with an error right away, whatever is still queued is dropped
+    public void fail(Status status) {
+        failure = status;
+        drain();
+    }
+
+    public void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (!completed && !observer.isCancelled()) {
+                T value;
+                while (failure == null && observer.isReady() && (value = queued.peek()) != null) {
+                    queued.poll();
+                    queuedCount.decrementAndGet();
+                    write(value);
+                }
+                for (Source source : sources) {
+                    if (failure == null) {
+                        source.deliver();
+                    }
+                }
+                if (failure != null) {
+                    completed = true;
+                    queued.clear();
+                    observer.onError(failure.asRuntimeException());
+                } else if (completing && queued.isEmpty()) {
+                    completed = true;
+                    observer.onCompleted();
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+        if (completed) {
+            closed();
+        }
+    }
+
+    private void closed() {
+        if (closeHandled.compareAndSet(false, true)) {
+            for (Runnable handler : closeHandlers) {
+                handler.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package be.msec.labgrpc.server;
+
+// what happens to a subscriber that does not read its stream and falls more than maxLag messages behind a log
+// the messages stay in the shared logs either way, a stalled subscriber only holds a cursor,
+// so the server's memory does not grow with it, the policy decides what the subscriber gets to see
+public class OverflowPolicy {
+
+    public enum Action {
+        // skip the oldest messages it did not receive, it continues maxLag messages behind
+        DROP_OLDEST,
+        // skip like DROP_OLDEST and send one MISSED marker with the number of skipped messages instead
+        COLLAPSE,
+        // fail the stream with RESOURCE_EXHAUSTED, the client resumes after the last message it received
+        DISCONNECT
+    }
+
+    public static final int DEFAULT_MAX_LAG = 1024;
+
+    private final int maxLag;
+    private final Action action;
+
+    /* ----------------------------- CONSTRUCTOR ----------------------------- */
+    public OverflowPolicy(int maxLag, Action action) {
+        if (maxLag <= 0) {
+            throw new IllegalArgumentException("maxLag must be positive: " + maxLag);
+        }
+        this.maxLag = maxLag;
+        this.action = action;
+    }
+
+    // -Dchat.subscriber.maxLag=1024 -Dchat.subscriber.overflow=COLLAPSE
+    public static OverflowPolicy fromSystemProperties() {
+        return new OverflowPolicy(
+                Integer.getInteger("chat.subscriber.maxLag", DEFAULT_MAX_LAG),
+                Action.valueOf(System.getProperty("chat.subscriber.overflow", Action.COLLAPSE.name())));
+    }
+
+    /* ----------------------------- GETTERS ----------------------------- */
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    @Override
+    public String toString() {
+        return action + " after " + maxLag + " messages";
+    }
+}
@@ -0,0 +1,172 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.PresenceEvent;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// keeps the online users and the last presence changes, every change gets the next presence version
+// a subscriber first gets a snapshot and then only the JOINED/LEFT events after the version of that snapshot
+// a local change records what the registry says under the lock of the tracker, not what the caller did,
+// so a disconnect and a quick reconnect on two threads end in the state of the registry, whichever records first
+public class PresenceTracker {
+
+    private static final Logger logger = Logger.getLogger(PresenceTracker.class.getName());
+    public static final int EVENT_CAPACITY = 1024;
+
+    // ring of the last events, the event with version v is stored at v % capacity
+    private final PresenceEvent[] events;
+    private final Set<String> online;
+    private long version;
+    private final Set<Subscriber<?>> subscribers;
+    // whether a user is connected to this server
+    private final Predicate<String> registry;
+    private volatile BiConsumer<PresenceEvent.Kind, String> relay = (kind, userName) -> {
+    };
+
+    public PresenceTracker(Predicate<String> registry) {
+        this.registry = registry;
+        events = new PresenceEvent[EVENT_CAPACITY];
+        online = new LinkedHashSet<>();
+        subscribers = ConcurrentHashMap.newKeySet();
+    }
+
+    /* ----------------------------- CHANGES ----------------------------- */
+    // the user connected to or disconnected from this server, called after the registry changed
+    // the change is relayed under the same lock, so the other servers see the changes in the same order
+    public void userChanged(String userName) {
+        boolean changed;
+        synchronized (this) {
+            PresenceEvent.Kind kind = registry.test(userName) ? PresenceEvent.Kind.JOINED : PresenceEvent.Kind.LEFT;
+            changed = apply(kind, userName);
+            if (changed) {
+                relay.accept(kind, userName);
+            }
+        }
+        if (changed) {
+            drainAll();
+        }
+    }
+
+    // a user joined or left on another server of the cluster, not relayed again
+    public void applyRemote(PresenceEvent.Kind kind, String userName) {
+        boolean changed;
+        synchronized (this) {
+            changed = apply(kind, userName);
+        }
+        if (changed) {
+            drainAll();
+        }
+    }
+
+    // called with the changes of the users of this server
+    public void setRelay(BiConsumer<PresenceEvent.Kind, String> relay) {
+        this.relay = relay;
+    }
+
+    // only under the lock
+    private boolean apply(PresenceEvent.Kind kind, String userName) {
+        boolean changed = kind == PresenceEvent.Kind.JOINED ? online.add(userName) : online.remove(userName);
+        if (changed) {
+            version++;
+            events[index(version)] = PresenceEvent.newBuilder().setKind(kind).setName(userName).setVersion(version).build();
+        }
+        return changed;
+    }
+
+    private void drainAll() {
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.stream.drain();
+        }
+    }
+
+    private synchronized PresenceEvent snapshot() {
+        return PresenceEvent.newBuilder()
+                .setKind(PresenceEvent.Kind.SNAPSHOT)
+                .addAllUsers(online)
+                .setVersion(version).build();
+    }
+
+    // the event with the given version, null if it did not happen yet or is no longer in the ring
+    private synchronized PresenceEvent eventAt(long v) {
+        if (v > version || version - v >= events.length) {
+            return null;
+        }
+        return events[index(v)];
+    }
+
+    private synchronized long getVersion() {
+        return version;
+    }
+
+    private int index(long v) {
+        return (int) (v % events.length);
+    }
+
+    /* ----------------------------- SUBSCRIBE ----------------------------- */
+    // mapper turns a presence event into the values written to the stream
+    public <T> void subscribe(OutboundStream<T> stream, Function<PresenceEvent, Iterable<T>> mapper) {
+        Subscriber<T> subscriber = new Subscriber<>(stream, mapper);
+        stream.onClose(() -> {
+            subscribers.remove(subscriber);
+            stream.removeSource(subscriber);
+        });
+        subscribers.add(subscriber);
+        stream.addSource(subscriber);
+    }
+
+    public void subscribe(OutboundStream<PresenceEvent> stream) {
+        subscribe(stream, Collections::singletonList);
+    }
+
+    public void close() {
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.stream.complete();
+        }
+        subscribers.clear();
+    }
+
+    /* ----------------------------- SUBSCRIBER ----------------------------- */
+    private class Subscriber<T> implements OutboundStream.Source {
+        private final OutboundStream<T> stream;
+        private final Function<PresenceEvent, Iterable<T>> mapper;
+        // version of the last event written, -1 until the snapshot is written
+        private long delivered = -1;
+
+        Subscriber(OutboundStream<T> stream, Function<PresenceEvent, Iterable<T>> mapper) {
+            this.stream = stream;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void deliver() {
+            while (stream.isReady()) {
+                PresenceEvent event;
+                if (delivered < 0) {
+                    event = snapshot();
+                } else {
+                    if (delivered == getVersion()) {
+                        return;
+                    }
+                    event = eventAt(delivered + 1);
+                    if (event == null) {
+                        // too far behind to replay the changes, start over from a new snapshot
+                        logger.log(Level.WARNING, "Presence subscriber fell behind, sending a new snapshot.");
+                        event = snapshot();
+                    }
+                }
+                delivered = event.getVersion();
+                for (T value : mapper.apply(event)) {
+                    stream.write(value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package be.msec.labgrpc.server;
+
+import java.util.concurrent.TimeUnit;
+
+// limits on how much history the server keeps in memory, 0 means no limit for bytes and age
+public class RetentionPolicy {
+
+    public static final int DEFAULT_MAX_MESSAGES = 4096;
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_MAILBOX_MAX_MESSAGES = 256;
+    public static final int DEFAULT_ROOM_MAX_MESSAGES = 1024;
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    /* ----------------------------- CONSTRUCTOR ----------------------------- */
+    public RetentionPolicy(int maxMessages, long maxBytes, long maxAgeMillis) {
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("maxMessages must be positive: " + maxMessages);
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public static RetentionPolicy ofMessages(int maxMessages) {
+        return new RetentionPolicy(maxMessages, 0, 0);
+    }
+
+    // -Dchat.history.maxMessages=4096 -Dchat.history.maxBytes=16777216 -Dchat.history.maxAgeSeconds=0
+    public static RetentionPolicy fromSystemProperties() {
+        return new RetentionPolicy(
+                Integer.getInteger("chat.history.maxMessages", DEFAULT_MAX_MESSAGES),
+                Long.getLong("chat.history.maxBytes", DEFAULT_MAX_BYTES),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.history.maxAgeSeconds", 0)));
+    }
+
+    // limits of the private mailbox of one user, the age limit is shared with the public history
+    // -Dchat.mailbox.maxMessages=256 -Dchat.mailbox.maxBytes=0
+    public static RetentionPolicy mailboxFromSystemProperties() {
+        return new RetentionPolicy(
+                Integer.getInteger("chat.mailbox.maxMessages", DEFAULT_MAILBOX_MAX_MESSAGES),
+                Long.getLong("chat.mailbox.maxBytes", 0),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.history.maxAgeSeconds", 0)));
+    }
+
+    // limits of the history of one room, the age limit is shared with the public history
+    // -Dchat.room.maxMessages=1024 -Dchat.room.maxBytes=0
+    public static RetentionPolicy roomFromSystemProperties() {
+        return new RetentionPolicy(
+                Integer.getInteger("chat.room.maxMessages", DEFAULT_ROOM_MAX_MESSAGES),
+                Long.getLong("chat.room.maxBytes", 0),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.history.maxAgeSeconds", 0)));
+    }
+
+    /* ----------------------------- GETTERS ----------------------------- */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public boolean hasMaxAge() {
+        return maxAgeMillis > 0;
+    }
+
+    /* ----------------------------- OVERRIDE ----------------------------- */
+    @Override
+    public String toString() {
+        return "RetentionPolicy{" +
+                "maxMessages=" + maxMessages +
+                ", maxBytes=" + maxBytes +
+                ", maxAgeMillis=" + maxAgeMillis +
+                '}';
+    }
+}
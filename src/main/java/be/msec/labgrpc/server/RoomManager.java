@@ -0,0 +1,113 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.metrics.MetricRegistry;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// the chat rooms by name, a room is created when the first user joins it and dropped with its history
+// when the last member leaves, so only rooms with members take memory, at most maxRooms of them
+// joining and leaving run in the compute of the map, so a user never joins a room that is being dropped
+public class RoomManager {
+
+    public static final int DEFAULT_MAX_ROOMS = 1024;
+
+    private final ConcurrentMap<String, ChatRoom> rooms;
+    private final RetentionPolicy retention;
+    private final OverflowPolicy overflow;
+    private final ChatMetrics metrics;
+    private final int maxRooms;
+
+    public RoomManager() {
+        this(RetentionPolicy.roomFromSystemProperties(), OverflowPolicy.fromSystemProperties(),
+                new ChatMetrics(new MetricRegistry()));
+    }
+
+    // -Dchat.room.maxRooms=1024
+    public RoomManager(RetentionPolicy retention, OverflowPolicy overflow, ChatMetrics metrics) {
+        this(retention, overflow, metrics, Integer.getInteger("chat.room.maxRooms", DEFAULT_MAX_ROOMS));
+    }
+
+    public RoomManager(RetentionPolicy retention, OverflowPolicy overflow, ChatMetrics metrics, int maxRooms) {
+        this.rooms = new ConcurrentHashMap<>();
+        this.retention = retention;
+        this.overflow = overflow;
+        this.metrics = metrics;
+        this.maxRooms = maxRooms;
+    }
+
+    // the room, or null if it does not exist yet and there are maxRooms rooms already
+    // (joins of different new rooms at the same time may go a few over)
+    @Nullable
+    public ChatRoom join(String room, String userName) {
+        return rooms.compute(room, (name, chatRoom) -> {
+            if (chatRoom == null) {
+                if (rooms.size() >= maxRooms) {
+                    return null;
+                }
+                chatRoom = new ChatRoom(name, retention, overflow, metrics);
+            }
+            chatRoom.join(userName);
+            return chatRoom;
+        });
+    }
+
+    // the room, or null if the user was not in it, a room left without members is dropped
+    @Nullable
+    public ChatRoom leave(String room, String userName) {
+        ChatRoom[] left = new ChatRoom[1];
+        rooms.computeIfPresent(room, (name, chatRoom) -> {
+            if (chatRoom.leave(userName)) {
+                left[0] = chatRoom;
+            }
+            if (chatRoom.hasMembers()) {
+                return chatRoom;
+            }
+            chatRoom.close();
+            return null;
+        });
+        return left[0];
+    }
+
+    // the room, or null if nobody is in it
+    @Nullable
+    public ChatRoom find(String room) {
+        return rooms.get(room);
+    }
+
+    // a user that disconnects leaves all rooms
+    public void leaveAll(String userName) {
+        for (String room : rooms.keySet()) {
+            leave(room, userName);
+        }
+    }
+
+    public void applyRetention() {
+        long now = System.currentTimeMillis();
+        for (ChatRoom chatRoom : rooms.values()) {
+            chatRoom.evictExpired(now);
+        }
+    }
+
+    public void close() {
+        for (ChatRoom chatRoom : rooms.values()) {
+            chatRoom.close();
+        }
+    }
+
+    // the subscribers of all rooms
+    public List<LagTracker> getLags() {
+        List<LagTracker> lags = new ArrayList<>();
+        for (ChatRoom chatRoom : rooms.values()) {
+            lags.addAll(chatRoom.getLags());
+        }
+        return lags;
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+}
@@ -1,14 +1,23 @@
 package be.msec.labgrpc.server;
 
+import be.msec.labgrpc.HistoryPage;
+import be.msec.labgrpc.HistoryRequest;
+import be.msec.labgrpc.OutgoingMessage;
+import be.msec.labgrpc.PrivateMessageText;
 import be.msec.labgrpc.User;
 import be.msec.labgrpc.exceptions.DuplicateUsernameException;
 import be.msec.labgrpc.exceptions.UserNotFoundException;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.*;
@@ -16,34 +25,108 @@ import java.util.*;
 public class UserManager {
 
     private static final Logger logger = Logger.getLogger(UserManager.class.getName());
-    private final List<Message> messages;
-    private final Map<String, User> users;
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+    public static final long DEFAULT_MAILBOX_IDLE_SECONDS = 3600;
+    // public messages
+    private final MessageLog history;
+    // private messages, one mailbox per user holding the messages the user sent or received
+    private final Map<String, MessageLog> mailboxes;
+    // the same private messages once more, one log per pair of users, so a page of one conversation
+    // never reads the messages of other conversations
+    private final Map<String, MessageLog> conversations;
+    private final RetentionPolicy mailboxRetention;
+    // mailboxes are only created when a message is stored, those of users that are offline this long are dropped
+    private final long mailboxIdleMillis;
+    // when the owners of the mailboxes were first seen offline by evictIdleMailboxes
+    private final Map<String, Long> offlineSince;
+    // last sequence number when mailboxes were last dropped, a mailbox created since may miss messages up to it
+    private volatile long droppedSequence;
+    // online users, connect and disconnect are single atomic map operations and lookups never block
+    private final ConcurrentMap<String, User> users;
+    private long lastSequence;
+    // every message up to this sequence number is in all the logs it belongs to, read without the lock
+    private volatile long storedSequence;
+    private MessageJournal journal;
+    private volatile RemoteUsers remoteUsers = RemoteUsers.NONE;
 
-    public UserManager() {
-        messages = new ArrayList<>();
-        users = new HashMap<>();
-    }
-
-    public void connectUser(String username, Object mutex) throws DuplicateUsernameException {
-        synchronized (mutex) {
-            if (users.containsKey(username)) {
-                throw new DuplicateUsernameException(username);
-            } else {
-                User user = new User(username);
-                users.put(username, user);
-                mutex.notifyAll();
+    // the users of the other servers of a cluster
+    public interface RemoteUsers {
+        RemoteUsers NONE = new RemoteUsers() {
+            @Override
+            public boolean claim(String userName) {
+                return true;
             }
-        }
+
+            @Override
+            public void release(String userName) {
+            }
+
+            @Override
+            public boolean isOnline(String userName) {
+                return false;
+            }
+        };
+
+        // reserve the name for a user of this server, false if it is in use on another server
+        boolean claim(String userName);
+
+        void release(String userName);
+
+        boolean isOnline(String userName);
+    }
+
+    // -Dchat.mailbox.idleSeconds=3600
+    public UserManager() {
+        this(RetentionPolicy.fromSystemProperties(), RetentionPolicy.mailboxFromSystemProperties(),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.mailbox.idleSeconds", DEFAULT_MAILBOX_IDLE_SECONDS)));
     }
 
-    public void disconnectUser(String username, Object mutex) throws UserNotFoundException {
-        synchronized (mutex) {
-            if (users.containsKey(username)) {
+    public UserManager(RetentionPolicy retention, RetentionPolicy mailboxRetention) {
+        this(retention, mailboxRetention, TimeUnit.SECONDS.toMillis(DEFAULT_MAILBOX_IDLE_SECONDS));
+    }
+
+    public UserManager(RetentionPolicy retention, RetentionPolicy mailboxRetention, long mailboxIdleMillis) {
+        history = new MessageLog(retention);
+        mailboxes = new ConcurrentHashMap<>();
+        conversations = new ConcurrentHashMap<>();
+        this.mailboxRetention = mailboxRetention;
+        this.mailboxIdleMillis = mailboxIdleMillis;
+        offlineSince = new ConcurrentHashMap<>();
+        users = new ConcurrentHashMap<>();
+    }
+
+    public void connectUser(String username) throws DuplicateUsernameException {
+        if (users.putIfAbsent(username, new User(username)) != null) {
+            throw new DuplicateUsernameException(username);
+        }
+        boolean claimed = false;
+        try {
+            claimed = remoteUsers.claim(username);
+        } finally {
+            if (!claimed) {
                 users.remove(username);
-            } else {
-                throw new UserNotFoundException("Could not find user: " + username);
             }
         }
+        if (!claimed) {
+            throw new DuplicateUsernameException(username);
+        }
+        offlineSince.remove(username);
+    }
+
+    public void disconnectUser(String username) throws UserNotFoundException {
+        if (users.remove(username) == null) {
+            throw new UserNotFoundException("Could not find user: " + username);
+        }
+        remoteUsers.release(username);
+    }
+
+    public void setRemoteUsers(RemoteUsers remoteUsers) {
+        this.remoteUsers = remoteUsers;
+    }
+
+    public boolean isOnline(String username) {
+        return users.containsKey(username);
     }
 
     public User findUserByName(String username) throws UserNotFoundException {
@@ -53,38 +136,322 @@ public class UserManager {
         } else throw new UserNotFoundException(username);
     }
 
-    // add message to list and notify the synchronization method
-    public void addToMessages(Message message, Object mutex) {
-        synchronized (mutex) {
-            try {
-                messages.add(message);
-                mutex.notifyAll();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    // the receiver of a private message may also be online on another server of the cluster
+    public User findRecipient(String username) throws UserNotFoundException {
+        User u = users.get(username);
+        if (u != null) {
+            return u;
         }
+        if (remoteUsers.isOnline(username)) {
+            return new User(username);
+        }
+        throw new UserNotFoundException(username);
+    }
+
+    // turn a message sent by a client into a server message, sender and receiver must be online
+    public Message createMessage(OutgoingMessage outgoing) throws UserNotFoundException {
+        if (outgoing.hasPrivateMessage()) {
+            PrivateMessageText pmt = outgoing.getPrivateMessage();
+            User sender = findUserByName(pmt.getMessageText().getSender());
+            User receiver = findRecipient(pmt.getReceiver());
+            return new Message(sender, MessageType.PRIVATE, pmt.getMessageText().getText(), receiver.getName());
+        }
+        if (outgoing.hasBroadcast()) {
+            User sender = findUserByName(outgoing.getBroadcast().getSender());
+            return new Message(sender, MessageType.BROADCAST, outgoing.getBroadcast().getText());
+        }
+        throw new IllegalArgumentException("Empty message");
+    }
 
+    // give the message the next sequence number and add it to the history or the mailboxes, delivery is done by the dispatcher
+    // the returned future completes once the message is durable (right away without a journal)
+    public CompletableFuture<Void> addToMessages(Message message) {
+        synchronized (history) {
+            message.setSequence(++lastSequence);
+            store(message);
+            if (journal == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return journal.append(message);
+        }
     }
 
-    public Message getLastMessage(String userName) {
-        Message msg;
-        if (!messages.isEmpty()) {
-            msg = messages.get(messages.size() - 1);
-            // check if message is intended for user
-            boolean isBroadcast = msg.getType() == MessageType.BROADCAST;
-            boolean isPrivate = msg.getType() == MessageType.PRIVATE;
-            if (isBroadcast) {
-                return msg;
-            } else {
-                boolean isCorrectUser = msg.getReceiverString().contains(userName) || msg.getSender().toString().contains(userName);
-                if (isCorrectUser) {
-                    return msg;
+    // add all messages under one lock, the returned future completes once all of them are durable
+    public CompletableFuture<Void> addAllToMessages(List<Message> messages) {
+        synchronized (history) {
+            CompletableFuture<?>[] appended = new CompletableFuture<?>[journal == null ? 0 : messages.size()];
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                message.setSequence(++lastSequence);
+                store(message);
+                if (journal != null) {
+                    appended[i] = journal.append(message);
                 }
             }
+            return CompletableFuture.allOf(appended);
+        }
+    }
+
+    private void store(Message message) {
+        if (message.getType() == MessageType.PRIVATE) {
+            String sender = message.getSender().getName();
+            String receiver = message.getReceiverString();
+            mailboxes.computeIfAbsent(sender, this::newMailbox).append(message);
+            if (!receiver.equals(sender)) {
+                mailboxes.computeIfAbsent(receiver, this::newMailbox).append(message);
+            }
+            conversations.computeIfAbsent(conversationKey(sender, receiver), this::newMailbox).append(message);
         } else {
-            return null;
+            history.append(message);
+        }
+        storedSequence = message.getSequence();
+    }
+
+    /* ----------------------------- HISTORY PAGES ----------------------------- */
+    // one page of a conversation of the user, the messages before request.before, oldest first
+    // every conversation has its own log, so the page is found with a binary search and read without skipping
+    // continues in the journal when the page reaches past what is still in memory
+    // reading never creates a log, a user without one gets an empty page (or only the journal while online)
+    public HistoryPage fetchHistory(HistoryRequest request) {
+        String userName = request.getName();
+        String peer = request.getPeer();
+        int limit = pageSize(request);
+        MessageLog log;
+        Predicate<Message> filter;
+        if (request.getConversation() == HistoryRequest.Conversation.PRIVATE) {
+            log = peer.isEmpty() ? null : findConversation(userName, peer);
+            if (log == null) {
+                // the conversation may have been dropped with the mailbox of the peer, the own mailbox has it too
+                log = findMailbox(userName);
+            }
+            filter = message -> message.getType() == MessageType.PRIVATE && message.isVisibleTo(userName)
+                    && (peer.isEmpty() || message.isVisibleTo(peer));
+        } else {
+            log = history;
+            filter = message -> message.getType() == MessageType.BROADCAST;
+        }
+        List<Message> page;
+        long evictedSequence;
+        if (log != null) {
+            page = log.readBefore(request.getBefore(), limit, filter);
+            evictedSequence = log.getEvictedSequence();
+        } else {
+            page = new ArrayList<>();
+            evictedSequence = getMailboxEvictedSequence(userName);
+        }
+        if (page.size() < limit && evictedSequence > 0 && hasJournal()) {
+            long upTo = request.getBefore() > 0 ? Math.min(request.getBefore() - 1, evictedSequence) : evictedSequence;
+            List<Message> older = new ArrayList<>(readJournal(0, upTo, filter, limit - page.size()));
+            older.addAll(page);
+            page = older;
+        }
+        return toHistoryPage(page, limit);
+    }
+
+    public static int pageSize(HistoryRequest request) {
+        return request.getLimit() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(request.getLimit(), MAX_PAGE_SIZE);
+    }
+
+    public static HistoryPage toHistoryPage(List<Message> page, int limit) {
+        HistoryPage.Builder builder = HistoryPage.newBuilder();
+        for (Message message : page) {
+            builder.addMessages(message.toEnvelope());
+        }
+        // a full page, there may be more before it
+        if (page.size() == limit) {
+            builder.setNextBefore(page.get(0).getSequence());
+        }
+        return builder.build();
+    }
+
+    /* ----------------------------- JOURNAL ----------------------------- */
+    // load the history from the journal and write every new message to it, returns the number of replayed messages
+    public int recover(MessageJournal journal) throws IOException {
+        synchronized (history) {
+            int replayed = journal.replay(message -> {
+                store(message);
+                lastSequence = message.getSequence();
+            });
+            this.journal = journal;
+            return replayed;
+        }
+    }
+
+    // the newest messages (at most limit) in the journal with a sequence number in (after, upTo] that pass the filter
+    public Deque<Message> readJournal(long after, long upTo, Predicate<Message> filter, int limit) {
+        Deque<Message> messages = new ArrayDeque<>();
+        MessageJournal journal;
+        synchronized (history) {
+            journal = this.journal;
+        }
+        if (journal == null) {
+            return messages;
+        }
+        try {
+            journal.read(after, upTo, message -> {
+                if (filter.test(message)) {
+                    messages.addLast(message);
+                    if (messages.size() > limit) {
+                        messages.removeFirst();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not read journal", e);
+        }
+        return messages;
+    }
+
+    // messages below this sequence number are not in the journal, Long.MAX_VALUE without a journal
+    public long getJournalFirstSequence() {
+        MessageJournal journal;
+        synchronized (history) {
+            journal = this.journal;
+        }
+        return journal == null ? Long.MAX_VALUE : journal.getFirstSequence();
+    }
+
+    public void closeJournal() {
+        synchronized (history) {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Could not close journal", e);
+                }
+                journal = null;
+            }
+        }
+    }
+
+    public long getLastSequence() {
+        synchronized (history) {
+            return lastSequence;
+        }
+    }
+
+    // a reader that only takes messages up to this number sees the public history and the mailboxes at one point in time
+    public long getStoredSequence() {
+        return storedSequence;
+    }
+
+    public MessageLog getHistory() {
+        return history;
+    }
+
+    // null if no private message of the user is kept
+    @Nullable
+    public MessageLog findMailbox(String userName) {
+        return mailboxes.get(userName);
+    }
+
+    // private messages of the user up to this sequence number are no longer in memory
+    // a user without a mailbox may have had one that was dropped, a private message since would have created it again
+    public long getMailboxEvictedSequence(String userName) {
+        synchronized (history) {
+            MessageLog mailbox = mailboxes.get(userName);
+            return mailbox != null ? mailbox.getEvictedSequence() : droppedSequence;
+        }
+    }
+
+    // the mailbox a message stream of the user reads, created for an online user only
+    // anyone else gets the mailbox that is kept or an empty log of its own, messages cannot reach them anyway
+    public MessageLog mailboxToFollow(String userName) {
+        if (isOnline(userName)) {
+            return mailboxes.computeIfAbsent(userName, this::newMailbox);
+        }
+        MessageLog mailbox = mailboxes.get(userName);
+        return mailbox != null ? mailbox : new MessageLog(RetentionPolicy.ofMessages(1));
+    }
+
+    // log of the private messages between two users, in either direction, null if there are none
+    @Nullable
+    public MessageLog findConversation(String userName, String peer) {
+        return conversations.get(conversationKey(userName, peer));
+    }
+
+    private static String conversationKey(String userName, String peer) {
+        return userName.compareTo(peer) <= 0 ? userName + '\n' + peer : peer + '\n' + userName;
+    }
+
+    // the messages of a dropped mailbox of the same user count as evicted from the new one
+    private MessageLog newMailbox(String key) {
+        return new MessageLog(mailboxRetention, droppedSequence);
+    }
+
+    // drop the mailboxes of users that have been offline for mailboxIdleMillis, with their conversations
+    // inUse tells which users still have an open message stream, their mailbox is kept
+    // the messages stay in the journal, returns the number of dropped mailboxes
+    public int evictIdleMailboxes(Predicate<String> inUse) {
+        long now = System.currentTimeMillis();
+        Set<String> dropped = new HashSet<>();
+        for (String userName : mailboxes.keySet()) {
+            if (isOnline(userName) || inUse.test(userName)) {
+                offlineSince.remove(userName);
+                continue;
+            }
+            long since = offlineSince.computeIfAbsent(userName, name -> now);
+            if (now - since >= mailboxIdleMillis) {
+                // under the lock of the writers, so no message is stored into a mailbox that is being dropped
+                synchronized (history) {
+                    if (!isOnline(userName)) {
+                        droppedSequence = lastSequence;
+                        mailboxes.remove(userName);
+                        dropped.add(userName);
+                    }
+                }
+                offlineSince.remove(userName);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            synchronized (history) {
+                conversations.keySet().removeIf(key -> {
+                    int split = key.indexOf('\n');
+                    return dropped.contains(key.substring(0, split)) || dropped.contains(key.substring(split + 1));
+                });
+            }
+            logger.log(Level.FINE, "Dropped the mailboxes of " + dropped.size() + " offline users.");
+        }
+        return dropped.size();
+    }
+
+    public boolean hasJournal() {
+        synchronized (history) {
+            return journal != null;
+        }
+    }
+
+    // evict the messages that are older than the retention policy allows
+    public void applyRetention() {
+        long now = System.currentTimeMillis();
+        int evicted = history.evictExpired(now);
+        for (MessageLog mailbox : mailboxes.values()) {
+            evicted += mailbox.evictExpired(now);
+        }
+        // the conversation logs share their messages with the mailboxes, they are not counted twice
+        for (MessageLog conversation : conversations.values()) {
+            conversation.evictExpired(now);
+        }
+        if (evicted > 0) {
+            logger.log(Level.FINE, "Evicted " + evicted + " expired messages, " + getHistorySize()
+                    + " messages (" + getHistoryFootprint() + " bytes) left.");
+        }
+    }
+
+    public int getHistorySize() {
+        int size = history.size();
+        for (MessageLog mailbox : mailboxes.values()) {
+            size += mailbox.size();
+        }
+        return size;
+    }
+
+    public long getHistoryFootprint() {
+        long bytes = history.getFootprint();
+        for (MessageLog mailbox : mailboxes.values()) {
+            bytes += mailbox.getFootprint();
         }
-        return null;
+        return bytes;
     }
 
     public List<String> getOnlineUsers() {
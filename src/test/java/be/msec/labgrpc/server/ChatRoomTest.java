@@ -0,0 +1,45 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.User;
+import be.msec.labgrpc.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static be.msec.labgrpc.server.MessageDispatcherTest.assertMissed;
+import static be.msec.labgrpc.server.MessageDispatcherTest.assertSequences;
+
+// resuming a room stream, the room keeps its last ten messages
+public class ChatRoomTest {
+
+    private final ChatRoom room = new ChatRoom("lobby", RetentionPolicy.ofMessages(10),
+            OverflowPolicy.fromSystemProperties(), new ChatMetrics(new MetricRegistry()));
+
+    @Test
+    public void resumesFromTheLogWithoutAGap() {
+        send(30);
+        assertSequences(resume(25), 26, 30);
+    }
+
+    @Test
+    public void reportsTheEvictedMessages() {
+        send(30);
+        List<Message> received = resume(5);
+        assertMissed(received.get(0), 15, 20);
+        assertSequences(received.subList(1, received.size()), 21, 30);
+    }
+
+    private void send(int count) {
+        room.join("alice");
+        for (int i = 1; i <= count; i++) {
+            room.send(Message.toRoom(new User("alice"), "lobby", "message " + i));
+        }
+    }
+
+    private List<Message> resume(long lastSequence) {
+        RecordingObserver<Message> observer = new RecordingObserver<>();
+        room.subscribe("alice", new OutboundStream<>(observer), Function.identity(), lastSequence);
+        return observer.values;
+    }
+}
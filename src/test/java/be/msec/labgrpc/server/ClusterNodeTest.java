@@ -0,0 +1,211 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.*;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// two servers of a cluster in one JVM, over the in-process transport
+public class ClusterNodeTest {
+
+    private static final long HEARTBEAT_MILLIS = 100;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<String> nodes = Arrays.asList("cluster-test-0", "cluster-test-1");
+    // the relay calls from one node to the other, cut to simulate a network blip
+    private final List<ClientCall<?, ?>> relays = new CopyOnWriteArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    // last sequence number when each user connected, their message streams resume from there
+    private final Map<String, Long> connectedAt = new ConcurrentHashMap<>();
+    private ChatServer[] servers;
+    private ChatServiceGrpc.ChatServiceBlockingStub[] blocking;
+    private ChatServiceGrpc.ChatServiceStub[] async;
+
+    @Before
+    public void startCluster() throws Exception {
+        ClientInterceptor recordRelays = new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                       CallOptions callOptions, Channel next) {
+                ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+                if (method.getFullMethodName().endsWith("/relay")) {
+                    relays.add(call);
+                }
+                return call;
+            }
+        };
+        servers = new ChatServer[nodes.size()];
+        blocking = new ChatServiceGrpc.ChatServiceBlockingStub[nodes.size()];
+        async = new ChatServiceGrpc.ChatServiceStub[nodes.size()];
+        for (int node = 0; node < nodes.size(); node++) {
+            ClusterConfig config = new ClusterConfig(nodes, node,
+                    address -> InProcessChannelBuilder.forName(address).intercept(recordRelays).build(),
+                    HEARTBEAT_MILLIS, ClusterConfig.DEFAULT_MAX_QUEUED);
+            servers[node] = new ChatServer(InProcessServerBuilder.forName(nodes.get(node)), 0, config);
+            servers[node].start();
+            ManagedChannel channel = InProcessChannelBuilder.forName(nodes.get(node)).build();
+            channels.add(channel);
+            blocking[node] = ChatServiceGrpc.newBlockingStub(channel);
+            async[node] = ChatServiceGrpc.newStub(channel);
+        }
+    }
+
+    @After
+    public void stopCluster() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        for (ChatServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void nameIsOnlineOnOneNodeAtMost() {
+        for (String name : Arrays.asList("alice", "bob", "carol", "dave")) {
+            assertTrue(connect(0, name));
+            assertFalse(name + " taken on the other node", connect(1, name));
+        }
+        disconnect(0, "alice");
+        assertTrue(connect(1, "alice"));
+    }
+
+    @Test
+    public void messagesAndPresenceCrossNodes() throws Exception {
+        assertTrue(connect(0, "alice"));
+        BlockingQueue<PresenceEvent> presence = presenceOf(0);
+        assertTrue(connect(1, "zed"));
+        awaitPresence(presence, PresenceEvent.Kind.JOINED, "zed");
+
+        BlockingQueue<ChatEnvelope> received = messagesOf(1, "zed");
+        blocking[0].sendBroadcastMsg(MessageText.newBuilder().setSender("alice").setText("hi all").build());
+        ChatEnvelope broadcast = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(broadcast);
+        assertEquals("hi all", broadcast.getBody());
+
+        sendPrivate(0, "alice", "zed", "psst");
+        ChatEnvelope direct = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(direct);
+        assertEquals(ChatEnvelope.Type.PRIVATE, direct.getType());
+        assertEquals("psst", direct.getBody());
+    }
+
+    // the other node drops the users of a broken relay stream and must get them back once the stream is reopened
+    @Test
+    public void usersSurviveABrokenRelayStream() throws Exception {
+        // checked by node 1, so a second connect there would succeed if it forgot the user
+        String name = nameAtHome(1);
+        assertTrue(connect(0, name));
+        assertTrue(connect(1, "zed"));
+        BlockingQueue<PresenceEvent> presence = presenceOf(1);
+        awaitPresence(presence, PresenceEvent.Kind.JOINED, name);
+        BlockingQueue<ChatEnvelope> received = messagesOf(0, name);
+
+        for (ClientCall<?, ?> relay : relays) {
+            relay.cancel("network blip", null);
+        }
+        awaitPresence(presence, PresenceEvent.Kind.LEFT, name);
+        awaitPresence(presence, PresenceEvent.Kind.JOINED, name);
+
+        assertFalse("name still claimed after the blip", connect(1, name));
+        sendPrivate(1, "zed", name, "still there?");
+        ChatEnvelope direct = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(direct);
+        assertEquals("still there?", direct.getBody());
+    }
+
+    /* ----------------------------- HELPERS ----------------------------- */
+    private boolean connect(int node, String name) {
+        ConnectMessage connected = blocking[node].connectUser(UserInfo.newBuilder().setName(name).build());
+        if (connected.getIsConnected()) {
+            connectedAt.put(name, connected.getLastSequence());
+        }
+        return connected.getIsConnected();
+    }
+
+    private void disconnect(int node, String name) {
+        assertTrue(blocking[node].disconnectUser(UserInfo.newBuilder().setName(name).build()).getIsDisconnected());
+    }
+
+    private void sendPrivate(int node, String sender, String receiver, String text) {
+        blocking[node].sendPrivateMsg(PrivateMessageText.newBuilder().setReceiver(receiver)
+                .setMessageText(MessageText.newBuilder().setSender(sender).setText(text)).build());
+    }
+
+    private String nameAtHome(int node) {
+        ClusterConfig config = new ClusterConfig(nodes, 0);
+        for (int i = 0; ; i++) {
+            if (config.homeOf("user" + i) == node) {
+                return "user" + i;
+            }
+        }
+    }
+
+    private BlockingQueue<PresenceEvent> presenceOf(int node) {
+        BlockingQueue<PresenceEvent> events = new LinkedBlockingQueue<>();
+        async[node].syncPresence(Empty.getDefaultInstance(), into(events));
+        return events;
+    }
+
+    private BlockingQueue<ChatEnvelope> messagesOf(int node, String name) {
+        BlockingQueue<ChatEnvelope> messages = new LinkedBlockingQueue<>();
+        SyncRequest request = SyncRequest.newBuilder().setName(name).setLastSequence(connectedAt.get(name)).build();
+        async[node].resumeMessages(request, into(messages));
+        return messages;
+    }
+
+    // a snapshot counts as JOINED for the names in it
+    private static void awaitPresence(BlockingQueue<PresenceEvent> events, PresenceEvent.Kind kind, String name)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            PresenceEvent event = events.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            if (event == null) {
+                continue;
+            }
+            if (event.getKind() == kind && event.getName().equals(name)
+                    || kind == PresenceEvent.Kind.JOINED && event.getUsersList().contains(name)) {
+                return;
+            }
+        }
+        fail("no " + kind + " event for " + name);
+    }
+
+    private static <T> StreamObserver<T> into(BlockingQueue<T> queue) {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                queue.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}
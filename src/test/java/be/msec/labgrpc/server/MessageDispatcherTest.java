@@ -0,0 +1,147 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.User;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+// resuming a message stream from a sequence number, with the gaps the server can no longer replay
+public class MessageDispatcherTest {
+
+    private static final int KEPT = 10;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final UserManager userManager = new UserManager(RetentionPolicy.ofMessages(KEPT), RetentionPolicy.ofMessages(KEPT), 0);
+    private final MessageDispatcher dispatcher = new MessageDispatcher(userManager);
+
+    @After
+    public void close() {
+        dispatcher.close();
+        userManager.closeJournal();
+    }
+
+    @Test
+    public void resumesFromMemoryWithoutAGap() throws Exception {
+        userManager.connectUser("alice");
+        broadcast(1, 30);
+
+        List<Message> received = resume("alice", 25);
+        assertSequences(received, 26, 30);
+    }
+
+    @Test
+    public void reportsTheEvictedMessagesWithoutAJournal() throws Exception {
+        userManager.connectUser("alice");
+        broadcast(1, 30);
+
+        List<Message> received = resume("alice", 5);
+        assertMissed(received.get(0), 15, 20);
+        assertSequences(received.subList(1, received.size()), 21, 30);
+    }
+
+    // the gap is reported even when no message follows it
+    @Test
+    public void reportsAGapAtTheEndOfTheLog() throws Exception {
+        userManager.connectUser("alice");
+        userManager.connectUser("bob");
+        for (int i = 0; i < 3; i++) {
+            userManager.addToMessages(new Message(new User("bob"), MessageType.PRIVATE, "psst", "alice"));
+        }
+        userManager.disconnectUser("alice");
+        assertEquals(1, userManager.evictIdleMailboxes(name -> false));
+        userManager.connectUser("alice");
+
+        List<Message> received = resume("alice", 0);
+        assertEquals(1, received.size());
+        assertMissed(received.get(0), 3, 3);
+    }
+
+    @Test
+    public void reportsThePrivateMessagesOfADroppedMailbox() throws Exception {
+        userManager.connectUser("alice");
+        userManager.connectUser("bob");
+        for (int i = 0; i < 3; i++) {
+            userManager.addToMessages(new Message(new User("bob"), MessageType.PRIVATE, "psst", "alice"));
+        }
+        userManager.disconnectUser("alice");
+        assertEquals(1, userManager.evictIdleMailboxes(name -> false));
+        broadcast(4, 4);
+        // creates the mailbox again, without the first three messages
+        userManager.addToMessages(new Message(new User("bob"), MessageType.PRIVATE, "back?", "alice"));
+        userManager.connectUser("alice");
+
+        List<Message> received = resume("alice", 0);
+        assertMissed(received.get(0), 3, 3);
+        assertSequences(received.subList(1, received.size()), 4, 5);
+    }
+
+    @Test
+    public void replaysTheEvictedMessagesFromTheJournal() throws Exception {
+        userManager.recover(new MessageJournal(folder.getRoot().toPath(), MessageJournal.DEFAULT_SEGMENT_BYTES, 0, 0));
+        userManager.connectUser("alice");
+        broadcast(1, 30);
+
+        assertSequences(resume("alice", 5), 6, 30);
+    }
+
+    // the journal deleted its oldest segments under maxSegments
+    @Test
+    public void reportsWhatTheJournalNoLongerHas() throws Exception {
+        userManager.recover(new MessageJournal(folder.getRoot().toPath(), 256, 0, 3));
+        userManager.connectUser("alice");
+        broadcast(1, 30);
+        long first = userManager.getJournalFirstSequence();
+        assertTrue(first > 1 && first <= 30 - KEPT);
+
+        List<Message> received = resume("alice", 0);
+        assertMissed(received.get(0), first - 1, first - 1);
+        assertSequences(received.subList(1, received.size()), first, 30);
+    }
+
+    // only the newest messages of a long gap are read from the journal
+    @Test
+    public void reportsTheMessagesBeyondTheJournalReplay() throws Exception {
+        userManager.recover(new MessageJournal(folder.getRoot().toPath(), MessageJournal.DEFAULT_SEGMENT_BYTES, 0, 0));
+        userManager.connectUser("alice");
+        broadcast(1, 10030);
+
+        List<Message> received = resume("alice", 0);
+        assertMissed(received.get(0), 20, 20);
+        assertSequences(received.subList(1, received.size()), 21, 10030);
+    }
+
+    /* ----------------------------- HELPERS ----------------------------- */
+    private void broadcast(long from, long to) {
+        for (long i = from; i <= to; i++) {
+            userManager.addToMessages(new Message(new User("bob"), MessageType.BROADCAST, "message " + i));
+        }
+        assertEquals(to, userManager.getLastSequence());
+    }
+
+    private List<Message> resume(String userName, long lastSequence) {
+        RecordingObserver<Message> observer = new RecordingObserver<>();
+        dispatcher.subscribe(userName, new OutboundStream<>(observer), Function.identity(), lastSequence);
+        return observer.values;
+    }
+
+    static void assertMissed(Message marker, long count, long lastSkipped) {
+        assertEquals(MessageType.MISSED, marker.getType());
+        assertEquals("You missed " + count + " messages", marker.getContent());
+        assertEquals(lastSkipped, marker.getSequence());
+    }
+
+    static void assertSequences(List<Message> messages, long from, long to) {
+        assertEquals(to - from + 1, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(from + i, messages.get(i).getSequence());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.User;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// journal files in a temporary directory, a restart is a new journal on the same directory
+public class MessageJournalTest {
+
+    // room for a few records per segment, so the tests roll segments
+    private static final int SEGMENT_BYTES = 256;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<MessageJournal> journals = new ArrayList<>();
+
+    @After
+    public void closeJournals() throws IOException {
+        for (MessageJournal journal : journals) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void replaysEveryMessageAfterARestart() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MessageJournal journal = open(dir, 0);
+        append(journal, 1, 10);
+        journal.close();
+
+        assertEquals(sequences(1, 10), replay(open(dir, 0)));
+        assertTrue("segments rolled", segments(dir).size() > 1);
+    }
+
+    @Test
+    public void continuesAfterTheLastMessageOfARestart() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        append(open(dir, 0), 1, 2);
+        journals.get(0).close();
+
+        MessageJournal restarted = open(dir, 0);
+        append(restarted, 3, 3);
+        assertEquals(sequences(1, 3), replay(restarted));
+    }
+
+    // the server stopped in the middle of writing the last record
+    @Test
+    public void ignoresATornFinalRecord() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MessageJournal journal = open(dir, 0);
+        append(journal, 1, 3);
+        journal.close();
+
+        Path segment = segments(dir).get(0);
+        List<Integer> records = recordOffsets(segment);
+        try (FileChannel out = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            out.truncate(records.get(2) + 12);
+        }
+
+        MessageJournal restarted = open(dir, 0);
+        assertEquals(sequences(1, 2), replay(restarted));
+        // the next message overwrites the torn one
+        append(restarted, 4, 4);
+        List<Long> expected = sequences(1, 2);
+        expected.add(4L);
+        assertEquals(expected, replay(restarted));
+    }
+
+    // a corrupt record ends its segment, the next segments are still read
+    @Test
+    public void skipsTheRestOfASegmentAfterACrcMismatch() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MessageJournal journal = open(dir, 0);
+        append(journal, 1, 10);
+        journal.close();
+
+        List<Path> files = segments(dir);
+        Path first = files.get(0);
+        List<Integer> records = recordOffsets(first);
+        assertTrue(records.size() >= 3);
+        try (FileChannel out = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            // the last byte of the content of the second record
+            out.write(ByteBuffer.wrap(new byte[]{'#'}), records.get(2) - 1);
+        }
+
+        List<Long> expected = new ArrayList<>();
+        expected.add(1L);
+        for (Path file : files.subList(1, files.size())) {
+            for (long sequence : sequencesIn(file)) {
+                expected.add(sequence);
+            }
+        }
+        assertEquals(expected, replay(open(dir, 0)));
+    }
+
+    // maxSegments drops the oldest segments while a read is still walking them
+    @Test
+    public void keepsTheSegmentsOfARunningRead() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MessageJournal journal = open(dir, 2);
+        append(journal, 1, 6);
+        List<Path> before = segments(dir);
+        assertEquals(2, before.size());
+
+        List<Long> read = new ArrayList<>();
+        int count = journal.read(0, Long.MAX_VALUE, message -> {
+            if (read.isEmpty()) {
+                // enough to roll past both segments the read still has to walk
+                append(journal, 7, 20);
+            }
+            read.add(message.getSequence());
+        });
+        // the messages of both segments, with those appended to the newest one before it rolled
+        assertTrue(count >= 6);
+        assertEquals(sequences(1, count), read);
+        for (Path segment : before) {
+            assertFalse(segment + " deleted after the read", Files.exists(segment));
+        }
+        assertEquals(2, segments(dir).size());
+    }
+
+    /* ----------------------------- HELPERS ----------------------------- */
+    private MessageJournal open(Path dir, int maxSegments) throws IOException {
+        MessageJournal journal = new MessageJournal(dir, SEGMENT_BYTES, 0, maxSegments);
+        journals.add(journal);
+        return journal;
+    }
+
+    private static void append(MessageJournal journal, long from, long to) {
+        for (long sequence = from; sequence <= to; sequence++) {
+            Message message = new Message(new User("alice"), MessageType.BROADCAST, "message " + sequence);
+            message.setSequence(sequence);
+            journal.append(message).join();
+        }
+    }
+
+    private static List<Long> replay(MessageJournal journal) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        int count = journal.replay(message -> sequences.add(message.getSequence()));
+        assertEquals(sequences.size(), count);
+        return sequences;
+    }
+
+    private static List<Long> sequences(long from, long to) {
+        List<Long> sequences = new ArrayList<>();
+        for (long sequence = from; sequence <= to; sequence++) {
+            sequences.add(sequence);
+        }
+        return sequences;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.journal")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    // the sequence numbers in the segment, read from the records themselves
+    private static List<Long> sequencesIn(Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Long> sequences = new ArrayList<>();
+        for (int offset : recordOffsets(segment)) {
+            sequences.add(buffer.getLong(offset + 8));
+        }
+        return sequences;
+    }
+
+    // where every record of the segment starts
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = new ArrayList<>();
+        int position = 0;
+        while (position + 4 <= buffer.limit() && buffer.getInt(position) > 0) {
+            offsets.add(position);
+            position += 8 + buffer.getInt(position);
+        }
+        return offsets;
+    }
+}
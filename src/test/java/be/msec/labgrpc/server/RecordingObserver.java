@@ -0,0 +1,63 @@
+package be.msec.labgrpc.server;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// the server side of a call that is always ready and keeps what is written to it
+class RecordingObserver<T> extends ServerCallStreamObserver<T> {
+
+    final List<T> values = new CopyOnWriteArrayList<>();
+    volatile boolean completed;
+    volatile Throwable error;
+
+    @Override
+    public void onNext(T value) {
+        values.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+        completed = true;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+    }
+
+    @Override
+    public void setCompression(String compression) {
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(int count) {
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+    }
+}
@@ -0,0 +1,60 @@
+package be.msec.labgrpc.server;
+
+import be.msec.labgrpc.User;
+import be.msec.labgrpc.metrics.MetricRegistry;
+import io.grpc.Status;
+import org.junit.Test;
+
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+// rooms only exist while they have members, and there are at most a few of them here
+public class RoomManagerTest {
+
+    private final RoomManager rooms = new RoomManager(RetentionPolicy.ofMessages(10),
+            OverflowPolicy.fromSystemProperties(), new ChatMetrics(new MetricRegistry()), 2);
+
+    @Test
+    public void dropsARoomWhenTheLastMemberLeaves() {
+        ChatRoom lobby = rooms.join("lobby", "alice");
+        rooms.join("lobby", "bob");
+        lobby.send(Message.toRoom(new User("alice"), "lobby", "hi"));
+
+        assertSame(lobby, rooms.leave("lobby", "alice"));
+        assertSame(lobby, rooms.find("lobby"));
+        assertSame(lobby, rooms.leave("lobby", "bob"));
+        assertNull(rooms.find("lobby"));
+        assertNull(rooms.leave("lobby", "bob"));
+
+        // joined again, it starts over without the old history
+        assertEquals(0, rooms.join("lobby", "alice").getLastSequence());
+    }
+
+    @Test
+    public void refusesNewRoomsBeyondTheLimit() {
+        assertNotNull(rooms.join("one", "alice"));
+        assertNotNull(rooms.join("two", "alice"));
+        assertNull(rooms.join("three", "alice"));
+        // existing rooms can still be joined
+        assertNotNull(rooms.join("one", "bob"));
+
+        rooms.leaveAll("alice");
+        assertNull(rooms.find("two"));
+        assertNotNull(rooms.join("three", "alice"));
+        assertEquals(2, rooms.getRoomCount());
+    }
+
+    // the caller checked the membership, then the user left before the stream was subscribed
+    @Test
+    public void failsAStreamSubscribedAfterTheUserLeft() {
+        ChatRoom lobby = rooms.join("lobby", "alice");
+        rooms.join("lobby", "bob");
+        rooms.leave("lobby", "alice");
+
+        RecordingObserver<Message> observer = new RecordingObserver<>();
+        lobby.subscribe("alice", new OutboundStream<>(observer), Function.identity(), -1);
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(observer.error).getCode());
+        assertEquals(0, lobby.getSubscriberCount());
+    }
+}